@@ -0,0 +1,176 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import cn.hjx.bench.Workload;
+
+/**
+ * A deterministic synthetic ledger for the benchmarks: the same seed and parameters always give the
+ * same keys, pool, epoch and signatures, so that runs and engines can be compared on equal terms.
+ */
+public class SyntheticWorkload implements Workload {
+
+    private static final int KEYS = 16;
+    private static final long COINS = 100 * Transaction.UNITS_PER_COIN;
+
+    private final Random random;
+    private final SecureRandom secureRandom;
+    private final KeyPair[] keyPairs = new KeyPair[KEYS];
+    private final HashMap<PublicKey, PrivateKey> privateKeys = new HashMap<PublicKey, PrivateKey>();
+
+    private final UTXOPool pool = new UTXOPool();
+    private final UTXO[] utxos;
+    private final Transaction[] epoch;
+    private final Transaction sample;
+    private final byte[] sampleData;
+    private final byte[] sampleSignature;
+    private final PublicKey sampleKey;
+
+    private final ForkJoinPool executor = new ForkJoinPool();
+    private int next;
+    private long added;
+
+    public SyntheticWorkload(long seed, int poolSize, int epochSize, int inputsPerTx, int outputsPerTx,
+                             double conflictRatio) throws Exception {
+        random = new Random(seed);
+        secureRandom = SecureRandom.getInstance("SHA1PRNG", "SUN");
+        secureRandom.setSeed(seed);
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
+        keyGen.initialize(1024, secureRandom);
+        for (int i = 0; i < KEYS; i++) {
+            keyPairs[i] = keyGen.generateKeyPair();
+            privateKeys.put(keyPairs[i].getPublic(), keyPairs[i].getPrivate());
+        }
+
+        // the pool: one output per funding transaction, enough to fund the whole epoch
+        utxos = new UTXO[Math.max(poolSize, epochSize * inputsPerTx)];
+        for (int i = 0; i < utxos.length; i++) {
+            utxos[i] = new UTXO(randomHash(), 0);
+            pool.addUTXO(utxos[i], new Transaction.Output(COINS, keyPairs[random.nextInt(KEYS)].getPublic()));
+        }
+
+        // the epoch: every tx spends fresh UTXOs, except for one input of the conflicting ones
+        epoch = new Transaction[epochSize];
+        List<UTXO> claimed = new ArrayList<UTXO>();
+        int fresh = 0;
+        for (int t = 0; t < epochSize; t++) {
+            Transaction tx = new Transaction();
+            long inputSum = 0;
+            for (int i = 0; i < inputsPerTx; i++) {
+                UTXO utxo;
+                if (i == 0 && !claimed.isEmpty() && random.nextDouble() < conflictRatio) {
+                    utxo = claimed.get(random.nextInt(claimed.size()));
+                } else {
+                    utxo = utxos[fresh++];
+                    claimed.add(utxo);
+                }
+                tx.addInput(utxo.getTxHash(), utxo.getIndex());
+                inputSum += pool.getTxOutput(utxo).value;
+            }
+            for (int o = 0; o < outputsPerTx; o++) {
+                tx.addOutput(inputSum / 10 * 9 / outputsPerTx, keyPairs[random.nextInt(KEYS)].getPublic());
+            }
+            for (int i = 0; i < inputsPerTx; i++) {
+                Transaction.Input input = tx.getInput(i);
+                PublicKey owner = pool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).address;
+                tx.addSignature(sign(privateKeys.get(owner), tx.getRawDataToSign(i)), i);
+            }
+            tx.finalize();
+            epoch[t] = tx;
+        }
+
+        sample = epoch.length > 0 ? epoch[0] : null;
+        sampleData = sample == null ? null : sample.getRawDataToSign(0);
+        sampleSignature = sample == null ? null : sample.getInput(0).signature;
+        sampleKey = sample == null ? null
+                : pool.getTxOutput(new UTXO(sample.getInput(0).prevTxHash, sample.getInput(0).outputIndex)).address;
+    }
+
+    private byte[] randomHash() {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    private byte[] sign(PrivateKey sk, byte[] message) throws Exception {
+        Signature sig = Signature.getInstance("SHA1withDSA", "SUN");
+        sig.initSign(sk, secureRandom);
+        sig.update(message);
+        return sig.sign();
+    }
+
+    @Override
+    public boolean verifySignature() {
+        return Crypto.verifySignature(sampleKey, sampleData, sampleSignature);
+    }
+
+    @Override
+    public int getRawDataToSign() {
+        int size = 0;
+        for (int i = 0; i < sample.numInputs(); i++) {
+            size += sample.getRawDataToSign(i).length;
+        }
+        return size;
+    }
+
+    @Override
+    public byte[] finalizeTx() {
+        sample.finalize();
+        return sample.getHash();
+    }
+
+    @Override
+    public Object poolGet() {
+        UTXO utxo = utxos[next];
+        next = next + 1 == utxos.length ? 0 : next + 1;
+        return pool.getTxOutput(utxo);
+    }
+
+    @Override
+    public void poolAddRemove() {
+        byte[] hash = new byte[32];
+        long n = added++;
+        for (int i = 0; i < 8; i++) {
+            hash[i] = (byte) (n >>> (8 * i));
+        }
+        UTXO utxo = new UTXO(hash, 1);
+        pool.addUTXO(utxo, pool.getTxOutput(utxos[0]));
+        pool.removeUTXO(utxo);
+    }
+
+    @Override
+    public Object poolCopy() {
+        return new UTXOPool(pool);
+    }
+
+    @Override
+    public int handleTxs(String engine) {
+        switch (engine) {
+            case "sequential":
+                return new TxHandler(pool).handleTxs(epoch).length;
+            case "parallel":
+                return new TxHandler(pool, executor).handleTxs(epoch).length;
+            case "scheduler":
+                return new EpochScheduler(new TxHandler(pool, executor)).schedule(epoch).getAccepted().length;
+            case "maxfee":
+                return new MaxFeeTxHandler(pool).handleTxs(epoch).length;
+            case "optimistic":
+                return new OptimisticTxHandler(pool, executor).handleTxs(epoch).length;
+            default:
+                throw new IllegalArgumentException("unknown engine " + engine);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,68 @@
+package cn.hjx.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to handle a whole epoch with a fresh handler, for each engine, on the same synthetic epochs.
+ * Every invocation starts from the same pool, since handlers work on a copy of it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandleTxsBenchmark {
+
+    @Param({ "42" })
+    public long seed;
+
+    @Param({ "100", "1000" })
+    public int epochSize;
+
+    @Param({ "1", "4" })
+    public int inputsPerTx;
+
+    @Param({ "2" })
+    public int outputsPerTx;
+
+    @Param({ "0.0", "0.1" })
+    public double conflictRatio;
+
+    @Param({ "100000" })
+    public int poolSize;
+
+    @Param({ "sequential", "parallel", "scheduler", "maxfee", "optimistic" })
+    public String engine;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workload.create(seed, poolSize, epochSize, inputsPerTx, outputsPerTx, conflictRatio);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public int handleTxs() {
+        return workload.handleTxs(engine);
+    }
+}
@@ -0,0 +1,84 @@
+package cn.hjx.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Per-operation costs of the validation hot path: signatures, serialization, hashing and the pool */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmarks {
+
+    /** one transaction of the given shape, and a pool of the given size */
+    @State(Scope.Benchmark)
+    public static class Ledger {
+        @Param({ "42" })
+        public long seed;
+
+        @Param({ "10000", "1000000" })
+        public int poolSize;
+
+        @Param({ "2" })
+        public int inputsPerTx;
+
+        @Param({ "2" })
+        public int outputsPerTx;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            workload = Workload.create(seed, poolSize, 1, inputsPerTx, outputsPerTx, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            workload.close();
+        }
+    }
+
+    @Benchmark
+    public boolean verifySignature(Ledger ledger) {
+        return ledger.workload.verifySignature();
+    }
+
+    @Benchmark
+    public int getRawDataToSign(Ledger ledger) {
+        return ledger.workload.getRawDataToSign();
+    }
+
+    @Benchmark
+    public byte[] finalizeTx(Ledger ledger) {
+        return ledger.workload.finalizeTx();
+    }
+
+    @Benchmark
+    public Object poolGet(Ledger ledger) {
+        return ledger.workload.poolGet();
+    }
+
+    @Benchmark
+    public void poolAddRemove(Ledger ledger) {
+        ledger.workload.poolAddRemove();
+    }
+
+    @Benchmark
+    public Object poolCopy(Ledger ledger) {
+        return ledger.workload.poolCopy();
+    }
+}
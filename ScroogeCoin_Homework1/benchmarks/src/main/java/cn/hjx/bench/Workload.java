@@ -0,0 +1,56 @@
+package cn.hjx.bench;
+
+/**
+ * The operations measured by the benchmarks, on a synthetic ledger. JMH requires benchmarks to live
+ * in a named package, which cannot refer to the classes of the default package; the workload is
+ * therefore implemented in the default package and loaded by name (see {@link #create}), and the
+ * benchmarks call it through this interface only.
+ */
+public interface Workload {
+
+    /** Verifies the signature of one input of the sample transaction */
+    boolean verifySignature();
+
+    /** Serializes the data to sign of every input of the sample transaction */
+    int getRawDataToSign();
+
+    /** Recomputes the hash of the sample transaction */
+    byte[] finalizeTx();
+
+    /** Looks up the next of the UTXOs of the pool */
+    Object poolGet();
+
+    /** Adds a new UTXO to the pool and removes it again */
+    void poolAddRemove();
+
+    /** Copies the pool, as the TxHandler constructor does */
+    Object poolCopy();
+
+    /**
+     * Handles the epoch with a fresh handler over the pool.
+     *
+     * @param engine one of "sequential", "parallel", "scheduler", "maxfee" and "optimistic"
+     * @return the number of accepted transactions
+     */
+    int handleTxs(String engine);
+
+    /** Releases the threads of the parallel engines */
+    void close();
+
+    /**
+     * Creates the deterministic workload of {@code seed}: a pool of {@code poolSize} UTXOs and an
+     * epoch of {@code epochSize} transactions with the given numbers of inputs and outputs, where a
+     * fraction {@code conflictRatio} of the transactions double-spends an output claimed by an
+     * earlier one.
+     */
+    static Workload create(long seed, int poolSize, int epochSize, int inputsPerTx, int outputsPerTx,
+                           double conflictRatio) {
+        try {
+            return (Workload) Class.forName("SyntheticWorkload")
+                    .getConstructor(long.class, int.class, int.class, int.class, int.class, double.class)
+                    .newInstance(seed, poolSize, epochSize, inputsPerTx, outputsPerTx, conflictRatio);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot create the synthetic workload", e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns public keys: every distinct key registered gets a dense int id, starting at 0, and one
+ * canonical PublicKey instance and X.509 encoding shared by all the outputs paying it. A UTXO
+ * backend can then store a 4-byte id instead of a key, and serializers can reuse the encoding
+ * instead of calling getEncoded(), which copies it on every call.
+ *
+ * Ids only mean something within the registry that gave them, and only for the life of the
+ * process; files store encodings. Keys are never unregistered, so only keys that must have an id
+ * are registered in the global registry: those paid by UTXOs added to a pool that stores ids,
+ * such as OffHeapUTXOPool. Transactions, the wire format, commitments and the DurableUTXOPool log
+ * only look keys up, so keys seen in proposed or decoded transactions, which anyone can send, do
+ * not make it grow. The registry is thread-safe, and lookups of registered keys do not lock.
+ */
+public class AddressRegistry {
+
+    private static final AddressRegistry GLOBAL = new AddressRegistry();
+
+    private final ConcurrentHashMap<PublicKey, Integer> idsByKey = new ConcurrentHashMap<PublicKey, Integer>();
+    private final ConcurrentHashMap<ByteBuffer, Integer> idsByEncoding = new ConcurrentHashMap<ByteBuffer, Integer>();
+    /** keys and encodings by id; replaced by larger copies as the registry grows */
+    private volatile PublicKey[] keys = new PublicKey[64];
+    private volatile byte[][] encodings = new byte[64][];
+    private volatile int size;
+
+    /** @return the registry shared by transactions and UTXO pools */
+    public static AddressRegistry global() {
+        return GLOBAL;
+    }
+
+    /** @return the id of {@code key}, registering it if needed */
+    public int register(PublicKey key) {
+        Integer id = idsByKey.get(key);
+        return id != null ? id : add(key, key.getEncoded());
+    }
+
+    /**
+     * @return the id of the key encoded (X.509) in {@code encoded}, registering it if needed. The
+     *         key is only decoded the first time its encoding is seen.
+     * @throws IllegalArgumentException if {@code encoded} is not a public key
+     */
+    public int register(byte[] encoded) {
+        Integer id = idsByEncoding.get(ByteBuffer.wrap(encoded));
+        if (id != null) {
+            return id;
+        }
+        PublicKey key = Crypto.decodePublicKey(encoded);
+        if (key == null) {
+            throw new IllegalArgumentException("not an encoded public key");
+        }
+        return add(key, encoded.clone());
+    }
+
+    /** @return the registered key equal to {@code key}, registering it if needed; null for null */
+    public PublicKey intern(PublicKey key) {
+        return key == null ? null : get(register(key));
+    }
+
+    /** @return the registered key equal to {@code key} if there is one, and otherwise {@code key}, without registering it */
+    public PublicKey canonical(PublicKey key) {
+        Integer id = key == null ? null : idsByKey.get(key);
+        return id == null ? key : keys[id];
+    }
+
+    /** @return the registered key encoded (X.509) in {@code encoded}, or null if there is none */
+    public PublicKey lookup(byte[] encoded) {
+        Integer id = idsByEncoding.get(ByteBuffer.wrap(encoded));
+        return id == null ? null : keys[id];
+    }
+
+    /** @return the id of {@code key}, or -1 if it is not registered */
+    public int idOf(PublicKey key) {
+        Integer id = idsByKey.get(key);
+        return id == null ? -1 : id;
+    }
+
+    /** @return the key of id {@code id} */
+    public PublicKey get(int id) {
+        checkId(id);
+        return keys[id];
+    }
+
+    /**
+     * @return the X.509 encoding of the key of id {@code id}. The array is shared and must not be
+     *         modified.
+     */
+    byte[] getEncoded(int id) {
+        checkId(id);
+        return encodings[id];
+    }
+
+    /** @return the number of keys registered */
+    public int size() {
+        return size;
+    }
+
+    private synchronized int add(PublicKey key, byte[] encoded) {
+        Integer id = idsByEncoding.get(ByteBuffer.wrap(encoded));
+        if (id == null) {
+            id = size;
+            if (id == keys.length) {
+                keys = Arrays.copyOf(keys, id * 2);
+                encodings = Arrays.copyOf(encodings, id * 2);
+            }
+            keys[id] = key;
+            encodings[id] = encoded;
+            size = id + 1;
+            idsByEncoding.put(ByteBuffer.wrap(encoded), id);
+        }
+        // an equal key of another class could have the same encoding; either instance finds the id
+        idsByKey.putIfAbsent(key, id);
+        return id;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("unknown address id " + id);
+        }
+    }
+}
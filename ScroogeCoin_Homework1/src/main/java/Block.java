@@ -0,0 +1,72 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+/**
+ * A block of transactions referencing its parent block by hash. Its coinbase transaction creates
+ * {@link #COINBASE} base units for the miner; the coinbase claims the parent's hash as its only
+ * input, without a signature, only so that the coinbases of different blocks paying the same key
+ * have different hashes. The block hash covers the parent hash and the hashes of all transactions.
+ */
+public class Block {
+
+    /** the value created by every block, in base units */
+    public static final long COINBASE = 25 * Transaction.UNITS_PER_COIN;
+
+    private byte[] hash;
+    private final byte[] prevBlockHash;
+    private final Transaction coinbase;
+    private final ArrayList<Transaction> txs = new ArrayList<Transaction>();
+
+    /** Creates a block on top of the block {@code prevHash}, or a genesis block if it is null, paying {@code address} */
+    public Block(byte[] prevHash, PublicKey address) {
+        prevBlockHash = prevHash;
+        coinbase = new Transaction();
+        coinbase.addInput(prevHash == null ? new byte[0] : prevHash, 0);
+        coinbase.addOutput(COINBASE, address);
+        coinbase.finalize();
+    }
+
+    public Transaction getCoinbase() {
+        return coinbase;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /** @return the hash of the parent block, or null for a genesis block */
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    public ArrayList<Transaction> getTransactions() {
+        return txs;
+    }
+
+    public Transaction getTransaction(int index) {
+        return txs.get(index);
+    }
+
+    public void addTransaction(Transaction tx) {
+        txs.add(tx);
+    }
+
+    /** Computes the hash of the block; to be called once all transactions are added */
+    public void computeHash() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            if (prevBlockHash != null) {
+                md.update(prevBlockHash);
+            }
+            md.update(coinbase.hash());
+            for (Transaction tx : txs) {
+                md.update(tx.hash());
+            }
+            hash = md.digest();
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A tree of blocks, each validated with a TxHandler against the UTXO pool left by its parent, that
+ * follows the longest chain. A block is accepted only if all of its transactions are; its coinbase
+ * is then added to the pool.
+ *
+ * Only one UTXO pool is kept: the one at the head, the highest block (the oldest one of those at
+ * the same height). Every block keeps instead the UndoLog of the changes it made to its parent's
+ * pool, which takes memory in proportion to its transactions. The pool of any other block is
+ * derived from the head's pool by rolling back the blocks from the head down to their common
+ * ancestor and forward up to that block, in time proportional to the transactions of those
+ * blocks; a fork of the head's pool is changed, which takes O(1).
+ *
+ * Blocks more than {@link #CUT_OFF_AGE} below the head are pruned, together with the branches that
+ * fork off below that height, so memory stays flat as the chain grows. A block must therefore
+ * extend a block at most CUT_OFF_AGE below the head, on the longest chain or on a branch forking
+ * off it above that height.
+ */
+public class BlockChain {
+
+    /** how many blocks below the head are kept */
+    public static final int CUT_OFF_AGE = 10;
+
+    /** A block of the tree */
+    private static class Node {
+        final Block block;
+        /** the parent block, or null for the root, so that pruned blocks can be collected */
+        Node parent;
+        final int height;
+        final List<Node> children = new ArrayList<Node>();
+        /** the changes the block made to the pool of its parent */
+        final UndoLog delta;
+
+        Node(Block block, Node parent, UndoLog delta) {
+            this.block = block;
+            this.parent = parent;
+            this.height = parent == null ? 1 : parent.height + 1;
+            this.delta = delta;
+        }
+    }
+
+    /** the blocks kept, by hash */
+    private final HashMap<ByteBuffer, Node> nodes = new HashMap<ByteBuffer, Node>();
+    /** the lowest block kept, on the longest chain */
+    private Node root;
+    private Node head;
+    /** the UTXO pool after the head */
+    private final UTXOPool headPool = new UTXOPool();
+
+    /** Creates a chain holding only {@code genesisBlock}, whose coinbase is the only UTXO */
+    public BlockChain(Block genesisBlock) {
+        TxHandler handler = new TxHandler(headPool);
+        handler.setUndoLogging(true);
+        handler.applyTx(genesisBlock.getCoinbase());
+        headPool.commit(handler.uPool);
+        root = head = new Node(genesisBlock, null, handler.takeUndoLog());
+        nodes.put(ByteBuffer.wrap(genesisBlock.getHash()), root);
+    }
+
+    /** @return the highest block; the oldest one if several have the same height */
+    public Block getMaxHeightBlock() {
+        return head.block;
+    }
+
+    /** @return the height of the highest block, the genesis block being at height 1 */
+    public int getMaxHeight() {
+        return head.height;
+    }
+
+    /** @return a copy of the UTXO pool after the highest block, made in O(1) */
+    public UTXOPool getMaxHeightUTXOPool() {
+        return new UTXOPool(headPool);
+    }
+
+    /** @return the number of blocks kept */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Adds {@code block} to the tree if its parent is kept, it is not too far below the head,
+     * and all of its transactions are valid, in order, against the pool of its parent. A block
+     * higher than the head becomes the head.
+     *
+     * @return true if the block was added
+     */
+    public boolean addBlock(Block block) {
+        if (block.getPrevBlockHash() == null || block.getHash() == null
+                || nodes.containsKey(ByteBuffer.wrap(block.getHash()))) {
+            return false;
+        }
+        Node parent = nodes.get(ByteBuffer.wrap(block.getPrevBlockHash()));
+        if (parent == null || parent.height + 1 <= head.height - CUT_OFF_AGE) {
+            return false;
+        }
+
+        TxHandler handler = new TxHandler(headPool);
+        derive(handler.uPool, parent);
+        handler.setUndoLogging(true);
+        Transaction[] txs = block.getTransactions().toArray(new Transaction[0]);
+        if (handler.handleTxs(txs).length != txs.length) {
+            return false;
+        }
+        handler.applyTx(block.getCoinbase());   // its pseudo-input is in no pool, so only the output is logged
+
+        Node node = new Node(block, parent, handler.takeUndoLog());
+        parent.children.add(node);
+        nodes.put(ByteBuffer.wrap(block.getHash()), node);
+        if (node.height > head.height) {
+            head = node;
+            headPool.commit(handler.uPool);
+            prune();
+        }
+        return true;
+    }
+
+    /** Takes {@code pool}, a fork of the head's pool, to the pool after {@code target} */
+    private void derive(UTXOPool pool, Node target) {
+        Node from = head;
+        ArrayDeque<Node> forward = new ArrayDeque<Node>();
+        while (from.height > target.height) {
+            from.delta.rollBack(pool);
+            from = from.parent;
+        }
+        while (target.height > from.height) {
+            forward.push(target);
+            target = target.parent;
+        }
+        while (from != target) {
+            from.delta.rollBack(pool);
+            from = from.parent;
+            forward.push(target);
+            target = target.parent;
+        }
+        for (Node node : forward) {
+            node.delta.rollForward(pool);
+        }
+    }
+
+    /** Drops the blocks more than CUT_OFF_AGE below the head and the branches forking off below them */
+    private void prune() {
+        Node newRoot = head;
+        while (newRoot.height > head.height - CUT_OFF_AGE && newRoot.parent != null) {
+            newRoot = newRoot.parent;
+        }
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        for (Node node = newRoot; node != root; node = node.parent) {
+            path.push(node);
+        }
+        for (Node next : path) {
+            nodes.remove(ByteBuffer.wrap(root.block.getHash()));
+            for (Node child : root.children) {
+                if (child != next) {
+                    removeBranch(child);
+                }
+            }
+            root = next;
+            root.parent = null;
+        }
+    }
+
+    private void removeBranch(Node branch) {
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        stack.push(branch);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            nodes.remove(ByteBuffer.wrap(node.block.getHash()));
+            stack.addAll(node.children);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A UTXOPool that several threads can read and change at the same time. UTXOs are spread over
+ * shards by the first two bytes of their transaction hash, which is already uniformly
+ * distributed; each shard is a ConcurrentHashMap, so lookups never lock, and has a lock taken by
+ * every change of it.
+ *
+ * {@link #claim(UTXO[], Transaction.Output[])} removes a set of UTXOs atomically, all of them or
+ * none, by taking the locks of their shards in shard order. Validator threads that each claim the
+ * inputs of the transaction they accept therefore never spend a UTXO twice, while transactions
+ * whose inputs are in different shards go through in parallel. Copies and forks copy the shards
+ * entry by entry.
+ *
+ * The owner index is a ConcurrentHashMap from key to the UTXOs paying it and their sum. An entry is
+ * changed atomically, under the lock of the shard of the UTXO, so balances and listings are exact
+ * once the changes are done, but not a snapshot while other threads change the pool.
+ */
+public class ConcurrentUTXOPool extends UTXOPool {
+
+    /** default number of shards */
+    static final int DEFAULT_SHARDS = 64;
+
+    private final Shard[] shards;
+    private final ConcurrentHashMap<PublicKey, Owned> owners = new ConcurrentHashMap<PublicKey, Owned>();
+
+    /** The UTXOs paying one key and their sum */
+    private static class Owned {
+        final ConcurrentHashMap<UTXO, Transaction.Output> utxos = new ConcurrentHashMap<UTXO, Transaction.Output>();
+        volatile long balance;
+    }
+
+    /** One shard: its UTXOs, and the lock held while changing them */
+    private static class Shard {
+        final ConcurrentHashMap<UTXO, Transaction.Output> utxos = new ConcurrentHashMap<UTXO, Transaction.Output>();
+        final ReentrantLock lock = new ReentrantLock();
+        /** the commitment to the entries of this shard; the pool's is the sum of those of its shards */
+        SetCommitment commitment = new SetCommitment();
+    }
+
+    /** Creates a new empty pool with the default number of shards */
+    public ConcurrentUTXOPool() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a new empty pool with {@code shards} shards, rounded up to a power of two
+     *
+     * @throws IllegalArgumentException if {@code shards} is not between 1 and 65536
+     */
+    public ConcurrentUTXOPool(int shards) {
+        if (shards < 1 || shards > 1 << 16) {
+            throw new IllegalArgumentException("shard count must be between 1 and 65536: " + shards);
+        }
+        this.shards = new Shard[Integer.highestOneBit(shards * 2 - 1)];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    /** Creates a new pool holding the contents of {@code uPool}, of any backend */
+    public ConcurrentUTXOPool(UTXOPool uPool) {
+        this(DEFAULT_SHARDS);
+        for (UTXO ut : uPool.getAllUTXO()) {
+            addUTXO(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    @Override
+    protected boolean isHeapBacked() {
+        return false;
+    }
+
+    @Override
+    protected UTXOPool copy() {
+        ConcurrentUTXOPool copy = new ConcurrentUTXOPool(shards.length);
+        copy.copyShardsFrom(this);
+        return copy;
+    }
+
+    @Override
+    protected void replaceWith(UTXOPool fork) {
+        copyShardsFrom((ConcurrentUTXOPool) fork);
+    }
+
+    /**
+     * Makes the contents of every shard those of the same shard of {@code other}, one shard at a
+     * time; the copy is only a snapshot if {@code other} is not changed meanwhile
+     */
+    private void copyShardsFrom(ConcurrentUTXOPool other) {
+        for (int i = 0; i < shards.length; i++) {
+            HashMap<UTXO, Transaction.Output> contents;
+            SetCommitment commitment;
+            Shard from = other.shards[i];
+            from.lock.lock();
+            try {
+                contents = new HashMap<UTXO, Transaction.Output>(from.utxos);
+                commitment = new SetCommitment(from.commitment);
+            } finally {
+                from.lock.unlock();
+            }
+            Shard shard = shards[i];
+            shard.lock.lock();
+            try {
+                for (Map.Entry<UTXO, Transaction.Output> e : shard.utxos.entrySet()) {
+                    index(e.getKey(), e.getValue(), null);
+                }
+                shard.utxos.clear();
+                shard.utxos.putAll(contents);
+                shard.commitment = commitment;
+                for (Map.Entry<UTXO, Transaction.Output> e : contents.entrySet()) {
+                    index(e.getKey(), null, e.getValue());
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (txOut == null) {
+            throw new NullPointerException("null output");
+        }
+        Shard shard = shardOf(utxo);
+        shard.lock.lock();
+        try {
+            Transaction.Output previous = shard.utxos.put(utxo, txOut);
+            index(utxo, previous, txOut);
+            if (previous != null) {
+                shard.commitment.remove(utxo, previous);
+            }
+            shard.commitment.add(utxo, txOut);
+        } finally {
+            shard.lock.unlock();
+        }
+        modified();
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        Shard shard = shardOf(utxo);
+        shard.lock.lock();
+        try {
+            Transaction.Output previous = shard.utxos.remove(utxo);
+            index(utxo, previous, null);
+            if (previous != null) {
+                shard.commitment.remove(utxo, previous);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        modified();
+    }
+
+    /**
+     * Atomically removes all of {@code utxos} from the pool if every one of them is in it, mapped to
+     * the output of the same position in {@code expected} (the very object, unless expected is
+     * null), and otherwise removes none of them.
+     *
+     * @return true if the UTXOs were claimed, and false if one of them is missing, mapped to
+     *         another output, or listed twice
+     */
+    public boolean claim(UTXO[] utxos, Transaction.Output[] expected) {
+        if (utxos.length > 1 && new HashSet<UTXO>(Arrays.asList(utxos)).size() < utxos.length) {
+            return false;
+        }
+        int[] locked = new int[utxos.length];
+        for (int i = 0; i < utxos.length; i++) {
+            locked[i] = shardIndex(utxos[i].getTxHash());
+        }
+        Arrays.sort(locked);   // locks are always taken in shard order, so claims cannot deadlock
+        int held = 0;
+        try {
+            for (int i = 0; i < locked.length; i++) {
+                if (i == 0 || locked[i] != locked[i - 1]) {
+                    shards[locked[i]].lock.lock();
+                    locked[held++] = locked[i];
+                }
+            }
+            for (int i = 0; i < utxos.length; i++) {
+                Transaction.Output output = shardOf(utxos[i]).utxos.get(utxos[i]);
+                if (output == null || expected != null && output != expected[i]) {
+                    return false;
+                }
+            }
+            for (UTXO utxo : utxos) {
+                Shard shard = shardOf(utxo);
+                Transaction.Output previous = shard.utxos.remove(utxo);
+                index(utxo, previous, null);
+                shard.commitment.remove(utxo, previous);
+            }
+        } finally {
+            while (held > 0) {
+                shards[locked[--held]].lock.unlock();
+            }
+        }
+        modified();
+        return true;
+    }
+
+    /** Same as claim(utxos, null) */
+    public boolean claim(UTXO... utxos) {
+        return claim(utxos, null);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return shardOf(ut).utxos.get(ut);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return shardOf(utxo).utxos.containsKey(utxo);
+    }
+
+    /** @return the number of UTXOs in the pool; not a snapshot while other threads change it */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.utxos.size();
+        }
+        return size;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+        for (Shard shard : shards) {
+            allUTXO.addAll(shard.utxos.keySet());
+        }
+        return allUTXO;
+    }
+
+    /** @return the sum of the commitments of the shards, each read under its lock */
+    @Override
+    public SetCommitment getCommitment() {
+        SetCommitment commitment = new SetCommitment();
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                commitment.add(shard.commitment);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return commitment;
+    }
+
+    @Override
+    public long getBalance(PublicKey owner) {
+        Owned owned = owner == null ? null : owners.get(owner);
+        return owned == null ? 0 : owned.balance;
+    }
+
+    @Override
+    public int getOwnedCount(PublicKey owner) {
+        Owned owned = owner == null ? null : owners.get(owner);
+        return owned == null ? 0 : owned.utxos.size();
+    }
+
+    /**
+     * Calls {@code action} on every UTXO paying {@code owner} and its output, without copying
+     * them; UTXOs added or removed meanwhile by other threads may or may not be seen
+     */
+    @Override
+    public void forEachOwned(PublicKey owner, BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        Owned owned = owner == null ? null : owners.get(owner);
+        if (owned != null) {
+            owned.utxos.forEach(action);
+        }
+    }
+
+    /**
+     * Records in the owner index that {@code utxo}, mapped to {@code previous} or absent, is now
+     * mapped to {@code txOut} or absent; called under the lock of the shard of {@code utxo}
+     */
+    private void index(UTXO utxo, Transaction.Output previous, Transaction.Output txOut) {
+        if (previous != null && previous.address != null) {
+            owners.computeIfPresent(previous.address, (key, owned) -> {
+                if (owned.utxos.remove(utxo) != null) {
+                    owned.balance -= previous.value;
+                }
+                return owned.utxos.isEmpty() ? null : owned;
+            });
+        }
+        if (txOut != null && txOut.address != null) {
+            owners.compute(txOut.address, (key, owned) -> {
+                Owned o = owned != null ? owned : new Owned();
+                o.utxos.put(utxo, txOut);
+                o.balance += txOut.value;
+                return o;
+            });
+        }
+    }
+
+    private Shard shardOf(UTXO utxo) {
+        return shards[shardIndex(utxo.getTxHash())];
+    }
+
+    private int shardIndex(byte[] txHash) {
+        int mask = shards.length - 1;
+        if (txHash == null) {
+            return 0;
+        }
+        if (txHash.length < 2) {
+            return Arrays.hashCode(txHash) & mask;
+        }
+        return ((txHash[0] & 0xFF) << 8 | (txHash[1] & 0xFF)) & mask;
+    }
+}
@@ -1,12 +1,48 @@
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Crypto {
 
+	/** number of public keys per thread whose initialized verifier is kept for reuse */
+	static final int VERIFIERS_PER_THREAD = 256;
+
+	/** number of encoded public keys whose decoded form is kept */
+	static final int DECODED_KEYS = 4096;
+
+	/**
+	 * Signature objects of the current thread, each one already initialized for verification with
+	 * its key. A DSA verifier returns to that state after every verify, so the provider lookup and
+	 * initVerify are paid once per thread and key.
+	 */
+	private static final ThreadLocal<Map<PublicKey, Signature>> verifiers =
+			ThreadLocal.withInitial(() -> new LruMap<PublicKey, Signature>(VERIFIERS_PER_THREAD));
+
+	/** Signature object of the current thread used by sign, initialized again for every key */
+	private static final ThreadLocal<Signature> signers = ThreadLocal.withInitial(() -> {
+		try {
+			return Signature.getInstance("SHA1withDSA", "SUN");
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	/** public keys decoded by decodePublicKey, by their X.509 encoding */
+	private static final Map<ByteBuffer, PublicKey> decodedKeys = new LruMap<ByteBuffer, PublicKey>(DECODED_KEYS);
+
 	/**
 	 * @return true is {@code signature} is a valid digital signature of
 	 *         {@code message} under the key {@code pubKey}. Internally, this uses
@@ -14,27 +50,160 @@ public class Crypto {
 	 *         implementation details of the specific signature algorithm
 	 */
 	public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-		Signature sig = null;
+		Map<PublicKey, Signature> threadVerifiers = verifiers.get();
+		Signature sig = threadVerifiers.get(pubKey);
+		if (sig == null) {
+			sig = newVerifier(pubKey);
+			if (sig == null) {
+				return false;
+			}
+			threadVerifiers.put(pubKey, sig);
+		}
+		boolean reusable = false;
+		try {
+			sig.update(message);
+			boolean valid = sig.verify(signature);
+			reusable = true;
+			return valid;
+		} catch (SignatureException e) {
+			// a malformed signature, which anyone can send, is invalid and not worth a stack trace
+		} finally {
+			// a verifier that failed half-way may still hold part of the message
+			if (!reusable) {
+				threadVerifiers.remove(pubKey);
+			}
+		}
+		return false;
+
+	}
+
+	/**
+	 * Verifies many signatures at once: {@code signatures[i]} is checked against
+	 * {@code messages[i]} under {@code pubKeys[i]}. The checks are grouped by key and each group
+	 * holds one initialized verifier from start to end, so every key is set up at most once per
+	 * call, even when the batch has more keys than the per-thread cache keeps.
+	 *
+	 * @return an array whose i-th element tells whether the i-th signature is valid
+	 * @throws IllegalArgumentException if the three arrays do not have the same length
+	 */
+	public static boolean[] verifySignatures(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+		if (messages.length != pubKeys.length || signatures.length != pubKeys.length) {
+			throw new IllegalArgumentException("keys, messages and signatures differ in number");
+		}
+		Map<PublicKey, List<Integer>> byKey = new HashMap<PublicKey, List<Integer>>();
+		for (int i = 0; i < pubKeys.length; i++) {
+			byKey.computeIfAbsent(pubKeys[i], k -> new ArrayList<Integer>()).add(i);
+		}
+		Map<PublicKey, Signature> threadVerifiers = verifiers.get();
+		boolean[] valid = new boolean[pubKeys.length];
+		for (Map.Entry<PublicKey, List<Integer>> group : byKey.entrySet()) {
+			PublicKey pubKey = group.getKey();
+			// taken out of the cache while in use, so that a verifier left half-way by an
+			// exception is never found there
+			Signature sig = threadVerifiers.remove(pubKey);
+			for (int i : group.getValue()) {
+				if (sig == null) {
+					sig = newVerifier(pubKey);
+					if (sig == null) {
+						break;
+					}
+				}
+				boolean reusable = false;
+				try {
+					sig.update(messages[i]);
+					valid[i] = sig.verify(signatures[i]);
+					reusable = true;
+				} catch (SignatureException e) {
+					// malformed, so invalid
+				} finally {
+					if (!reusable) {
+						sig = null;
+					}
+				}
+			}
+			if (sig != null) {
+				threadVerifiers.put(pubKey, sig);
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * @return the signature of {@code message} under the private key {@code privKey}, which
+	 *         verifySignature accepts under the matching public key. May be called from several
+	 *         threads at the same time.
+	 * @throws IllegalArgumentException if {@code privKey} is not a DSA key
+	 */
+	public static byte[] sign(PrivateKey privKey, byte[] message) {
+		Signature sig = signers.get();
+		try {
+			sig.initSign(privKey);
+			sig.update(message);
+			return sig.sign();
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException(e);
+		} catch (SignatureException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the DSA public key whose X.509 encoding is {@code encoded}, or null if it is not a
+	 *         valid encoding, which is not reported otherwise as {@code encoded} may come from
+	 *         the network. Recently decoded keys are returned from a cache.
+	 */
+	public static PublicKey decodePublicKey(byte[] encoded) {
+		ByteBuffer id = ByteBuffer.wrap(encoded.clone());
+		synchronized (decodedKeys) {
+			PublicKey pubKey = decodedKeys.get(id);
+			if (pubKey != null) {
+				return pubKey;
+			}
+		}
+		PublicKey pubKey = null;
+		try {
+			pubKey = KeyFactory.getInstance("DSA", "SUN").generatePublic(new X509EncodedKeySpec(id.array()));
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+			throw new IllegalStateException(e);
+		} catch (InvalidKeySpecException e) {
+			return null;
+		}
+		synchronized (decodedKeys) {
+			decodedKeys.put(id, pubKey);
+		}
+		return pubKey;
+	}
+
+	/** @return a new Signature object initialized to verify signatures under {@code pubKey}, or null */
+	private static Signature newVerifier(PublicKey pubKey) {
 		try {
-			sig = Signature.getInstance("SHA1withDSA", "SUN");
+			Signature sig = Signature.getInstance("SHA1withDSA", "SUN");
+			sig.initVerify(pubKey);
+			return sig;
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		} catch (NoSuchProviderException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
-		}
-		try {
-			sig.initVerify(pubKey);
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 		}
-		try {
-			sig.update(message);
-			return sig.verify(signature);
-		} catch (SignatureException e) {
-			e.printStackTrace();
+		return null;
+	}
+
+	/** A map keeping at most {@code capacity} entries, evicting the least recently used one */
+	static class LruMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		LruMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
 		}
-		return false;
 
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
 	}
 }
@@ -0,0 +1,419 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A UTXOPool that survives restarts. Its contents are those of a checkpoint file followed by the
+ * epoch commit records appended to a memory-mapped log, each of which lists the UTXOs added and
+ * removed during one epoch. Changes become durable when the epoch is committed; a process killed
+ * mid-epoch (even mid-record) reopens to the last committed epoch, since a record is only taken if
+ * its length and CRC32 are intact. Compaction writes a new checkpoint and empties the log.
+ *
+ * A TxHandler works on a fork of the pool; its changes are brought back and made durable with
+ * <pre>
+ *     TxHandler handler = new TxHandler(store);
+ *     handler.handleTxs(possibleTxs);
+ *     store.commit(handler.uPool);
+ *     store.commitEpoch();
+ * </pre>
+ */
+public class DurableUTXOPool extends UTXOPool implements Closeable {
+
+    static final String CHECKPOINT = "utxo.checkpoint";
+    static final String LOG = "utxo.log";
+    private static final int CHECKPOINT_MAGIC = 0x5554584f;   // "UTXO"
+    /** 2: outputs refer to an address table written before them */
+    private static final int CHECKPOINT_VERSION = 2;
+    private static final int INITIAL_LOG_SIZE = 1 << 20;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    private final File dir;
+    private FileChannel logChannel;
+    private MappedByteBuffer log;
+    /** end of the last committed record in the log */
+    private int logEnd;
+    private long epoch;
+    /** the contents as of the last committed epoch */
+    private UTXOPool committed;
+    /** changes made since the last committed epoch, in order */
+    private List<Change> pending = new ArrayList<Change>();
+
+    private DurableUTXOPool(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Opens the pool stored in directory {@code dir}, creating an empty one if there is none, and
+     * returns it with the contents of its last committed epoch.
+     */
+    public static DurableUTXOPool open(File dir) throws IOException {
+        Files.createDirectories(dir.toPath());
+        DurableUTXOPool pool = new DurableUTXOPool(dir);
+        pool.readCheckpoint();
+        pool.openLog();
+        pool.committed = new UTXOPool(pool);
+        return pool;
+    }
+
+    /** @return the number of the last committed epoch, 0 if none was committed */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        super.addUTXO(utxo, txOut);
+        pending.add(new Change(utxo, txOut));
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        super.removeUTXO(utxo);
+        pending.add(new Change(utxo, null));
+    }
+
+    @Override
+    protected UTXOPool copy() {
+        return new RecordingPool(this);
+    }
+
+    @Override
+    protected void replaceWith(UTXOPool fork) {
+        super.replaceWith(fork);
+        pending.addAll(((RecordingPool) fork).changes);
+        ((RecordingPool) fork).changes.clear();
+    }
+
+    /**
+     * Appends the changes made since the last committed epoch to the log as one record and forces
+     * it to disk.
+     *
+     * @return the number of the committed epoch
+     */
+    public long commitEpoch() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(epoch + 1);
+        out.writeInt(pending.size());
+        for (Change change : pending) {
+            out.writeByte(change.output == null ? REMOVE : ADD);
+            writeUTXO(out, change.utxo, change.output);
+        }
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        int recordSize = Integer.BYTES + body.length + Integer.BYTES;
+        // keep room for the zero length that marks the end of the log
+        ensureLogCapacity(logEnd + recordSize + Integer.BYTES);
+        log.position(logEnd + Integer.BYTES);
+        log.put(body);
+        log.putInt((int) crc.getValue());
+        log.force();
+        // the length makes the record visible, so it is written last
+        log.putInt(logEnd, body.length);
+        log.force();
+
+        logEnd += recordSize;
+        epoch++;
+        pending = new ArrayList<Change>();
+        committed = new UTXOPool(this);
+        return epoch;
+    }
+
+    /** Drops the changes made since the last committed epoch */
+    public void discardEpoch() {
+        super.replaceWith(committed);
+        pending = new ArrayList<Change>();
+        modified();
+    }
+
+    /**
+     * Compacts the store: writes the contents of the last committed epoch to a new checkpoint,
+     * atomically replacing the previous one, and then empties the log. Changes not committed yet
+     * are kept in memory.
+     */
+    public void checkpoint() throws IOException {
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            ArrayList<UTXO> utxos = committed.getAllUTXO();
+            // each distinct address is written once, and outputs refer to it by its position
+            HashMap<ByteBuffer, Integer> positions = new HashMap<ByteBuffer, Integer>();
+            ArrayList<byte[]> addresses = new ArrayList<byte[]>();
+            int[] addressOf = new int[utxos.size()];
+            for (int i = 0; i < addressOf.length; i++) {
+                byte[] address = committed.getTxOutput(utxos.get(i)).encodedAddress();
+                Integer position = address == null ? Integer.valueOf(-1) : positions.get(ByteBuffer.wrap(address));
+                if (position == null) {
+                    position = addresses.size();
+                    positions.put(ByteBuffer.wrap(address), position);
+                    addresses.add(address);
+                }
+                addressOf[i] = position;
+            }
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(epoch);
+            out.writeInt(addresses.size());
+            for (byte[] address : addresses) {
+                out.writeShort(address.length);
+                out.write(address);
+            }
+            out.writeInt(utxos.size());
+            for (int i = 0; i < addressOf.length; i++) {
+                UTXO ut = utxos.get(i);
+                out.writeShort(ut.getTxHash().length);
+                out.write(ut.getTxHash());
+                out.writeInt(ut.getIndex());
+                out.writeLong(committed.getTxOutput(ut).value);
+                out.writeInt(addressOf[i]);
+            }
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        // records up to this epoch are now in the checkpoint, and skipped on open if still there
+        clearLog(0);
+        log.force();
+        logEnd = 0;
+    }
+
+    /** @return the size of the mapped log; the UTXOs themselves are held in the heap */
+    @Override
+    public long offHeapBytes() {
+        return log.capacity();
+    }
+
+    /** Closes the log; changes not committed are lost */
+    @Override
+    public void close() throws IOException {
+        logChannel.close();
+    }
+
+    private void readCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT);
+        if (!file.exists()) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            DataInputStream checked = new DataInputStream(new CheckedInputStream(in, crc));
+            if (length < 28 || checked.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("not a UTXO checkpoint: " + file);
+            }
+            int version = checked.readInt();
+            if (version != CHECKPOINT_VERSION) {
+                throw new IOException("unsupported UTXO checkpoint version " + version + ": " + file);
+            }
+            epoch = checked.readLong();
+            PublicKey[] addresses = new PublicKey[checked.readInt()];
+            for (int i = 0; i < addresses.length; i++) {
+                byte[] address = new byte[checked.readUnsignedShort()];
+                checked.readFully(address);
+                addresses[i] = decodeAddress(address);
+            }
+            int count = checked.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] txHash = new byte[checked.readUnsignedShort()];
+                checked.readFully(txHash);
+                UTXO utxo = new UTXO(txHash, checked.readInt());
+                long value = checked.readLong();
+                int address = checked.readInt();
+                if (address < -1 || address >= addresses.length) {
+                    throw new IOException("corrupt UTXO checkpoint: " + file);
+                }
+                super.addUTXO(utxo, new Transaction.Output(value, address < 0 ? null : addresses[address]));
+            }
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("corrupt UTXO checkpoint: " + file);
+            }
+        }
+    }
+
+    /** Maps the log, replays its committed records and clears whatever follows them */
+    private void openLog() throws IOException {
+        logChannel = FileChannel.open(new File(dir, LOG).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(logChannel.size(), INITIAL_LOG_SIZE);
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        int position = 0;
+        while (position + Integer.BYTES <= log.capacity()) {
+            int length = log.getInt(position);
+            int end = position + Integer.BYTES + length + Integer.BYTES;
+            if (length <= 0 || end < 0 || end > log.capacity()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            log.position(position + Integer.BYTES);
+            log.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (log.getInt() != (int) crc.getValue()) {
+                break;   // torn record of an epoch that was not committed
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            long recordEpoch = in.readLong();
+            int count = in.readInt();
+            if (recordEpoch > epoch) {
+                for (int i = 0; i < count; i++) {
+                    load(readChange(in, in.readByte()));
+                }
+                epoch = recordEpoch;
+            }
+            position = end;
+        }
+        logEnd = position;
+        clearLog(logEnd);
+        log.force();
+    }
+
+    /** Applies a change read from the checkpoint or the log, which is already durable */
+    private void load(Change change) {
+        if (change.output == null) {
+            super.removeUTXO(change.utxo);
+        } else {
+            super.addUTXO(change.utxo, change.output);
+        }
+    }
+
+    private void clearLog(int from) {
+        for (int i = from; i < log.capacity(); i++) {
+            if (log.get(i) != 0) {
+                log.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private void ensureLogCapacity(int size) throws IOException {
+        if (size <= log.capacity()) {
+            return;
+        }
+        long newSize = log.capacity();
+        while (newSize < size) {
+            newSize *= 2;
+        }
+        log.force();
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    private static void writeUTXO(DataOutputStream out, UTXO utxo, Transaction.Output output) throws IOException {
+        out.writeShort(utxo.getTxHash().length);
+        out.write(utxo.getTxHash());
+        out.writeInt(utxo.getIndex());
+        if (output != null) {
+            byte[] address = output.encodedAddress();
+            if (address == null) {
+                address = new byte[0];
+            }
+            out.writeLong(output.value);
+            out.writeShort(address.length);
+            out.write(address);
+        }
+    }
+
+    private static Change readChange(DataInputStream in, byte type) throws IOException {
+        byte[] txHash = new byte[in.readUnsignedShort()];
+        in.readFully(txHash);
+        UTXO utxo = new UTXO(txHash, in.readInt());
+        if (type == REMOVE) {
+            return new Change(utxo, null);
+        }
+        if (type != ADD) {
+            throw new IOException("unknown UTXO log entry " + type);
+        }
+        long value = in.readLong();
+        byte[] address = new byte[in.readUnsignedShort()];
+        in.readFully(address);
+        return new Change(utxo, new Transaction.Output(value, address.length == 0 ? null : decodeAddress(address)));
+    }
+
+    /**
+     * @return the key encoded in {@code address}, the one in the global AddressRegistry if it is
+     *         registered; it is not registered here, as the log also holds spent outputs
+     */
+    private static PublicKey decodeAddress(byte[] address) throws IOException {
+        PublicKey key = AddressRegistry.global().lookup(address);
+        if (key == null) {
+            key = Crypto.decodePublicKey(address);
+        }
+        if (key == null) {
+            throw new IOException("corrupt UTXO address");
+        }
+        return key;
+    }
+
+    /** The addition (or, if output is null, removal) of one UTXO */
+    private static class Change {
+        final UTXO utxo;
+        final Transaction.Output output;
+
+        Change(UTXO utxo, Transaction.Output output) {
+            this.utxo = utxo;
+            this.output = output;
+        }
+    }
+
+    /** A heap fork of the store that remembers its changes, so that committing it can log them */
+    private static class RecordingPool extends UTXOPool {
+        final List<Change> changes = new ArrayList<Change>();
+
+        RecordingPool(UTXOPool uPool) {
+            super(uPool);
+        }
+
+        @Override
+        public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+            super.addUTXO(utxo, txOut);
+            changes.add(new Change(utxo, txOut));
+        }
+
+        @Override
+        public void removeUTXO(UTXO utxo) {
+            super.removeUTXO(utxo);
+            changes.add(new Change(utxo, null));
+        }
+
+        /** @return a fork that records its changes too, so that they reach the store through this pool */
+        @Override
+        protected UTXOPool copy() {
+            return new RecordingPool(this);
+        }
+
+        @Override
+        protected void replaceWith(UTXOPool fork) {
+            super.replaceWith(fork);
+            changes.addAll(((RecordingPool) fork).changes);
+            ((RecordingPool) fork).changes.clear();
+        }
+    }
+}
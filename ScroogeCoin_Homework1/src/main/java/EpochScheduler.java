@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Processes an epoch of proposed transactions in dependency order instead of array order, so that
+ * a transaction spending an output created in the same epoch is accepted even when it appears
+ * before its parent in the array.
+ *
+ * The scheduler builds a graph from each input's UTXO to the in-epoch transaction creating it and
+ * handles the transactions in topological order, breaking ties by array position. Conflicts are
+ * therefore still resolved first come, first serviced, and an array that is already in topological
+ * order yields exactly the result of {@link TxHandler#handleTxs}. When the handler was created with
+ * an executor, the signatures of all independent subgraphs are verified concurrently before the
+ * transactions are applied to the pool one by one.
+ */
+public class EpochScheduler {
+
+    private final TxHandler handler;
+
+    /** Creates a scheduler that validates transactions with, and updates the pool of, {@code handler} */
+    public EpochScheduler(TxHandler handler) {
+        this.handler = handler;
+    }
+
+    /** Outcome of one scheduled epoch */
+    public static class Result {
+        private final Transaction[] accepted;
+        private final Transaction[] rejected;
+        private final Transaction[] dropped;
+
+        Result(List<Transaction> accepted, List<Transaction> rejected, List<Transaction> dropped) {
+            this.accepted = accepted.toArray(new Transaction[0]);
+            this.rejected = rejected.toArray(new Transaction[0]);
+            this.dropped = dropped.toArray(new Transaction[0]);
+        }
+
+        /** @return the accepted transactions, in the order they were applied to the pool */
+        public Transaction[] getAccepted() {
+            return accepted;
+        }
+
+        /** @return the transactions that failed validation themselves */
+        public Transaction[] getRejected() {
+            return rejected;
+        }
+
+        /** @return the transactions not validated because an in-epoch ancestor was not accepted */
+        public Transaction[] getDropped() {
+            return dropped;
+        }
+    }
+
+    /**
+     * Handles the epoch {@code possibleTxs} in topological order, updating the handler's UTXO pool
+     * with every accepted transaction.
+     */
+    public Result schedule(Transaction[] possibleTxs) {
+        long start = handler.startTimer();
+        int n = possibleTxs.length;
+
+        // which in-epoch transaction creates each UTXO
+        HashMap<UTXO, Integer> creators = new HashMap<UTXO, Integer>();
+        for (int i = 0; i < n; i++) {
+            Transaction tx = possibleTxs[i];
+            if (tx.hash() == null) {
+                continue;
+            }
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                creators.putIfAbsent(new UTXO(tx.hash(), j), i);
+            }
+        }
+
+        // parent -> children edges, and the number of unprocessed parents of each transaction
+        List<List<Integer>> children = new ArrayList<List<Integer>>();
+        List<List<Integer>> parents = new ArrayList<List<Integer>>();
+        int[] pending = new int[n];
+        for (int i = 0; i < n; i++) {
+            children.add(new ArrayList<Integer>());
+            parents.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < n; i++) {
+            for (Transaction.Input input : possibleTxs[i].inputs()) {
+                if (input.prevTxHash == null) {
+                    continue;
+                }
+                Integer parent = creators.get(new UTXO(input.prevTxHash, input.outputIndex));
+                if (parent == null || parent == i || parents.get(i).contains(parent)) {
+                    continue;
+                }
+                parents.get(i).add(parent);
+                children.get(parent).add(i);
+                pending[i]++;
+            }
+        }
+
+        TxHandler.PreverifiedTx[] preverified = handler.isParallel() ? handler.verifySignatures(possibleTxs) : null;
+
+        List<Transaction> accepted = new ArrayList<Transaction>();
+        List<Transaction> rejected = new ArrayList<Transaction>();
+        List<Transaction> dropped = new ArrayList<Transaction>();
+        boolean[] failed = new boolean[n];   // rejected or dropped
+        boolean[] done = new boolean[n];
+
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (pending[i] == 0) {
+                ready.add(i);
+            }
+        }
+        int next = 0;   // lowest index that may still be unprocessed, used to break dependency cycles
+        while (true) {
+            if (ready.isEmpty()) {
+                // only transactions on a cycle of forged hashes are left; take them in array order
+                while (next < n && done[next]) {
+                    next++;
+                }
+                if (next == n) {
+                    break;
+                }
+                ready.add(next);
+            }
+            int i = ready.poll();
+            if (done[i]) {
+                continue;
+            }
+            done[i] = true;
+            Transaction tx = possibleTxs[i];
+
+            boolean ancestorFailed = false;
+            for (int parent : parents.get(i)) {
+                ancestorFailed |= failed[parent];
+            }
+            TxHandler.PreverifiedTx p = preverified == null ? null : preverified[i];
+            if (ancestorFailed) {
+                failed[i] = true;
+                dropped.add(tx);
+                // the outputs it claims from its failed ancestor will never be in the pool
+                handler.decided(tx, TxHandler.Rejection.NOT_IN_POOL);
+            } else {
+                TxHandler.Rejection rejection = handler.checkTx(tx, p);
+                if (rejection == null) {
+                    accepted.add(tx);
+                    handler.applyTx(tx);
+                } else {
+                    failed[i] = true;
+                    rejected.add(tx);
+                }
+                handler.decided(tx, rejection);
+            }
+            if (failed[i] && p != null) {
+                p.cancel();
+            }
+
+            for (int child : children.get(i)) {
+                if (--pending[child] == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+        handler.epochHandled(n, accepted.size(), start);
+        return new Result(accepted, rejected, dropped);
+    }
+}
@@ -0,0 +1,83 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A TxHandler.Listener recording what handlers report as Java Flight Recorder events, to be read
+ * with JDK Mission Control or jfr print next to GC and lock events:
+ * ScroogeCoin.Stage for every stage timed, ScroogeCoin.Rejection for every rejected transaction
+ * and ScroogeCoin.Epoch for every epoch. Accepted transactions are counted by the epoch events.
+ * Events that no recording enables cost one check each.
+ */
+public class JfrTxHandlerListener implements TxHandler.Listener {
+
+    @Name("ScroogeCoin.Stage")
+    @Label("Transaction Handling Stage")
+    @Category("ScroogeCoin")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("ScroogeCoin.Rejection")
+    @Label("Transaction Rejected")
+    @Category("ScroogeCoin")
+    static class RejectionEvent extends Event {
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("ScroogeCoin.Epoch")
+    @Label("Epoch Handled")
+    @Category("ScroogeCoin")
+    static class EpochEvent extends Event {
+        @Label("Proposed")
+        int proposed;
+
+        @Label("Accepted")
+        int accepted;
+
+        @Label("Pool Size")
+        int poolSize;
+
+        @Label("Pool Off-Heap Bytes")
+        long poolOffHeapBytes;
+    }
+
+    @Override
+    public void onStage(TxHandler.Stage stage, long nanos) {
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.latency = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onRejected(Transaction tx, TxHandler.Rejection reason) {
+        RejectionEvent event = new RejectionEvent();
+        if (event.shouldCommit()) {
+            event.reason = reason.name();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onEpoch(int proposed, int accepted, UTXOPool pool) {
+        EpochEvent event = new EpochEvent();
+        if (event.shouldCommit()) {
+            event.proposed = proposed;
+            event.accepted = accepted;
+            event.poolSize = pool.size();
+            event.poolOffHeapBytes = pool.offHeapBytes();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative latencies in nanoseconds, in the style of HdrHistogram: values are
+ * counted in log-linear buckets, each power of two being split into {@value #SUB_BUCKETS} / 2
+ * linear sub-buckets, so that any value from 0 to Long.MAX_VALUE is recorded in constant time and
+ * memory, and a percentile is reported within {@value #SUB_BITS} significant bits (about 3%) of
+ * the recorded value. Values below {@value #SUB_BUCKETS} are counted exactly.
+ *
+ * Recording does not lock and may be done from several threads at the same time. Reads taken
+ * while values are recorded are not a snapshot.
+ */
+public class LatencyHistogram {
+
+    /** bits of precision of the buckets */
+    static final int SUB_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    /** index of the bucket of Long.MAX_VALUE, plus one */
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one occurrence of {@code nanos}; negative values, which a clock stepping back may
+     * give, count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /** @return the number of values recorded */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return the sum of the values recorded; it may overflow after about 292 years of latency */
+    public long getTotal() {
+        return sum.sum();
+    }
+
+    /** @return the largest value recorded, or 0 */
+    public long getMax() {
+        return max.get();
+    }
+
+    /** @return the mean of the values recorded, or 0 if there is none */
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getTotal() / n;
+    }
+
+    /**
+     * @return the smallest value v such that {@code percentile} percent of the values recorded are
+     *         at most v, rounded up to the end of its bucket (but not past the maximum); 0 if no
+     *         value was recorded
+     * @throws IllegalArgumentException if {@code percentile} is not between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /** Forgets all the values recorded; values recorded meanwhile may be partly kept */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + Math.round(getMean()) + "ns p50=" + getValueAtPercentile(50)
+                + "ns p99=" + getValueAtPercentile(99) + "ns max=" + getMax() + "ns";
+    }
+
+    /** @return the bucket of the non-negative {@code value} */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // value >>> shift is in [HALF, SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /** @return the largest value of bucket {@code index} */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
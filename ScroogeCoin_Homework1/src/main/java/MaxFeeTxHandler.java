@@ -0,0 +1,438 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A TxHandler that, instead of accepting proposed transactions first come first serviced, picks a
+ * mutually valid subset of them maximizing either the total transaction fees (sum of input values
+ * minus sum of output values) or the number of accepted transactions.
+ *
+ * Validity is decided by the rules of {@link TxHandler#isValidTx}. The epoch is handled in rounds:
+ * every round takes the transactions whose claimed outputs are all in the pool, groups the valid
+ * ones by the UTXOs they claim, and chooses a set of them with at most one in every group. The
+ * groups stand for the conflict graph, in which every group is a clique, in space and time linear
+ * in the number of inputs however many transactions claim one UTXO. Small rounds are solved
+ * exactly by branch and bound, larger ones by a greedy pass followed by local improvement.
+ * Children of the chosen transactions become candidates of the next round.
+ *
+ * Validation and optimization share the latency budget of the epoch: once it has passed,
+ * transactions not yet validated are rejected as {@link Rejection#OUT_OF_BUDGET}, and may be
+ * proposed again, and the best answer found for the round is kept.
+ *
+ * A candidate weighs its own fee (or 1) plus the fees (or number) of its in-epoch descendants, so
+ * that a parent is not given up for a conflicting transaction paying more than the parent alone.
+ */
+public class MaxFeeTxHandler extends TxHandler {
+
+    /** what the selected subset of an epoch maximizes */
+    public enum Objective { FEES, COUNT }
+
+    /** rounds with at most this many valid candidates are solved exactly */
+    static final int EXACT_LIMIT = 24;
+
+    private final Objective objective;
+    /** time after which validation stops, and the exact search and the local improvement keep their best answer */
+    private final long latencyBudgetNanos;
+
+    /** Creates a handler maximizing the total fees of each epoch within one second */
+    public MaxFeeTxHandler(UTXOPool uPool) {
+        this(uPool, null, Objective.FEES, 1000);
+    }
+
+    /**
+     * Creates a handler maximizing {@code objective} of each epoch. An epoch stops validating
+     * transactions and improving its answer after {@code latencyBudgetMillis}; the greedy answer
+     * of the transactions validated is always computed. If {@code executor} is not null,
+     * signatures are verified in parallel as in {@link TxHandler#TxHandler(UTXOPool, ExecutorService)}.
+     */
+    public MaxFeeTxHandler(UTXOPool uPool, ExecutorService executor, Objective objective, long latencyBudgetMillis) {
+        super(uPool, executor);
+        this.objective = objective;
+        this.latencyBudgetNanos = latencyBudgetMillis * 1000000L;
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, returning a
+     * mutually valid array of accepted transactions chosen to maximize the objective, and updating
+     * the current UTXO pool as appropriate.
+     */
+    @Override
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long start = startTimer();
+        long deadline = System.nanoTime() + latencyBudgetNanos;
+        PreverifiedTx[] preverified = isParallel() ? verifySignatures(possibleTxs) : null;
+        double[] packageWeight = packageWeights(possibleTxs);
+
+        List<Integer> waiting = new ArrayList<Integer>();   // txs claiming outputs not yet in the pool
+        for (int i = 0; i < possibleTxs.length; i++) {
+            waiting.add(i);
+        }
+        List<Integer> late = new ArrayList<Integer>();      // txs not validated within the budget
+        List<Transaction> acceptedTxs = new ArrayList<Transaction>();
+        while (true) {
+            // every tx is fully validated once, as soon as all the outputs it claims are in the pool
+            List<Integer> candidates = new ArrayList<Integer>();
+            List<Integer> stillWaiting = new ArrayList<Integer>();
+            for (int i : waiting) {
+                Transaction tx = possibleTxs[i];
+                PreverifiedTx p = preverified == null ? null : preverified[i];
+                if (!claimsOnlyPooledOutputs(tx)) {
+                    stillWaiting.add(i);
+                    continue;
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    late.add(i);
+                    continue;
+                }
+                Rejection rejection = checkTx(tx, p);
+                if (rejection == null) {
+                    candidates.add(i);
+                    continue;
+                }
+                if (p != null) {
+                    p.cancel();
+                }
+                decided(tx, rejection);
+            }
+            waiting = stillWaiting;
+            if (candidates.isEmpty()) {
+                break;
+            }
+
+            Transaction[] txs = new Transaction[candidates.size()];
+            double[] weight = new double[txs.length];
+            for (int k = 0; k < txs.length; k++) {
+                txs[k] = possibleTxs[candidates.get(k)];
+                weight[k] = packageWeight[candidates.get(k)];
+            }
+            boolean[] chosen = select(txs, weight, deadline);
+            for (int k = 0; k < txs.length; k++) {
+                if (chosen[k]) {
+                    acceptedTxs.add(txs[k]);
+                    applyTx(txs[k]);
+                }
+                // a candidate left out conflicts with a chosen one, which spent one of its inputs
+                decided(txs[k], chosen[k] ? null : Rejection.NOT_IN_POOL);
+            }
+        }
+        for (int i : waiting) {
+            if (preverified != null) {
+                preverified[i].cancel();
+            }
+            decided(possibleTxs[i], Rejection.NOT_IN_POOL);
+        }
+        for (int i : late) {
+            if (preverified != null) {
+                preverified[i].cancel();
+            }
+            decided(possibleTxs[i], Rejection.OUT_OF_BUDGET);
+        }
+        epochHandled(possibleTxs.length, acceptedTxs.size(), start);
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /** @return the fee paid by {@code tx}, which must be valid against the current pool */
+    public long fee(Transaction tx) {
+        long fee = 0;
+        for (Transaction.Input input : tx.inputs()) {
+            fee += uPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).value;
+        }
+        return fee - tx.getTotalOutputValue();
+    }
+
+    /**
+     * @return for every tx of {@code txs}, its own weight plus the weights of its in-epoch
+     *         descendants, where a tx weighs its fee (or 1 when maximizing the count). Outputs are
+     *         resolved from the pool and from the epoch; txs with unresolved inputs weigh 0.
+     */
+    private double[] packageWeights(Transaction[] txs) {
+        int n = txs.length;
+        HashMap<UTXO, Integer> creators = new HashMap<UTXO, Integer>();
+        for (int i = 0; i < n; i++) {
+            if (txs[i].hash() == null) {
+                continue;
+            }
+            for (int j = 0; j < txs[i].numOutputs(); j++) {
+                creators.putIfAbsent(new UTXO(txs[i].hash(), j), i);
+            }
+        }
+
+        double[] own = new double[n];
+        List<Set<Integer>> children = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < n; i++) {
+            children.add(new HashSet<Integer>());
+        }
+        for (int i = 0; i < n; i++) {
+            long fee = 0;
+            boolean resolved = true;
+            for (Transaction.Input input : txs[i].inputs()) {
+                if (input.prevTxHash == null) {
+                    resolved = false;
+                    continue;
+                }
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                Transaction.Output output = uPool.getTxOutput(utxo);
+                Integer parent = creators.get(utxo);
+                if (output == null && parent != null) {
+                    output = txs[parent].output(input.outputIndex);
+                    if (parent != i) {
+                        children.get(parent).add(i);
+                    }
+                }
+                if (output == null) {
+                    resolved = false;
+                } else {
+                    fee = saturatedAdd(fee, output.value);
+                }
+            }
+            for (Transaction.Output output : txs[i].outputs()) {
+                fee = saturatedAdd(fee, -output.value);
+            }
+            if (resolved) {
+                own[i] = objective == Objective.FEES ? Math.max(fee, 0) : 1;
+            }
+        }
+
+        double[] total = new double[n];
+        boolean[] visited = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            addDescendants(i, own, children, total, visited);
+        }
+        return total;
+    }
+
+    private static double addDescendants(int i, double[] own, List<Set<Integer>> children, double[] total, boolean[] visited) {
+        if (!visited[i]) {
+            visited[i] = true;   // set before recursing, so a cycle of forged hashes ends here
+            total[i] = own[i];
+            for (int child : children.get(i)) {
+                total[i] += addDescendants(child, own, children, total, visited);
+            }
+        }
+        return total[i];
+    }
+
+    /** @return true if every output claimed by {@code tx} is in the current pool */
+    private boolean claimsOnlyPooledOutputs(Transaction tx) {
+        for (Transaction.Input input : tx.inputs()) {
+            if (input.prevTxHash == null || !uPool.contains(new UTXO(input.prevTxHash, input.outputIndex))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chooses a maximum-weight set of valid transactions {@code txs} among which no two claim the
+     * same UTXO.
+     */
+    private static boolean[] select(Transaction[] txs, double[] weight, long deadline) {
+        ClaimGroups groups = new ClaimGroups(txs);
+        boolean[] chosen = greedy(weight, groups);
+        if (txs.length <= EXACT_LIMIT) {
+            groups.clear();
+            return new BranchAndBound(weight, groups, deadline, chosen).solve();
+        }
+        improve(chosen, weight, groups, deadline);
+        return chosen;
+    }
+
+    /**
+     * The conflicts between the txs of a round: for every UTXO claimed by more than one of them,
+     * the group of its claimants, and which of them, if any, is taken. Two txs conflict if they
+     * are in a common group, and a set of txs is conflict-free if every group holds at most one.
+     */
+    private static class ClaimGroups {
+        /** the groups of every tx */
+        final int[][] groupsOf;
+        /** the number of claims every tx has in common with others, at least its number of conflicts */
+        final long[] degree;
+        /** the tx taken in every group, or -1 */
+        final int[] taken;
+
+        ClaimGroups(Transaction[] txs) {
+            int n = txs.length;
+            HashMap<UTXO, List<Integer>> claims = new HashMap<UTXO, List<Integer>>();
+            for (int k = 0; k < n; k++) {
+                for (Transaction.Input input : txs[k].inputs()) {
+                    claims.computeIfAbsent(new UTXO(input.prevTxHash, input.outputIndex), u -> new ArrayList<Integer>()).add(k);
+                }
+            }
+            int[] count = new int[n];
+            List<List<Integer>> groups = new ArrayList<List<Integer>>();
+            degree = new long[n];
+            for (List<Integer> claimants : claims.values()) {
+                if (claimants.size() > 1) {
+                    groups.add(claimants);
+                    for (int k : claimants) {
+                        count[k]++;
+                        degree[k] += claimants.size() - 1;
+                    }
+                }
+            }
+            groupsOf = new int[n][];
+            for (int k = 0; k < n; k++) {
+                groupsOf[k] = new int[count[k]];
+                count[k] = 0;
+            }
+            for (int g = 0; g < groups.size(); g++) {
+                for (int k : groups.get(g)) {
+                    groupsOf[k][count[k]++] = g;
+                }
+            }
+            taken = new int[groups.size()];
+            clear();
+        }
+
+        /** @return true if no tx conflicting with {@code k} is taken */
+        boolean isFree(int k) {
+            for (int g : groupsOf[k]) {
+                if (taken[g] >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void take(int k) {
+            for (int g : groupsOf[k]) {
+                taken[g] = k;
+            }
+        }
+
+        void drop(int k) {
+            for (int g : groupsOf[k]) {
+                taken[g] = -1;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(taken, -1);
+        }
+    }
+
+    /** Takes txs by decreasing weight per conflict, skipping those conflicting with a taken tx */
+    private static boolean[] greedy(double[] weight, ClaimGroups groups) {
+        int n = weight.length;
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer k) -> -weight[k] / (groups.degree[k] + 1))
+                .thenComparingInt(k -> k));
+        boolean[] chosen = new boolean[n];
+        for (int k : order) {
+            if (groups.isFree(k)) {
+                chosen[k] = true;
+                groups.take(k);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Local improvement of {@code chosen}, whose txs are the ones taken in {@code groups}: swaps in
+     * a tx whenever it weighs more than all the chosen txs it conflicts with together, until no
+     * swap helps or the deadline has passed. A pass takes time linear in the number of inputs.
+     */
+    private static void improve(boolean[] chosen, double[] weight, ClaimGroups groups, long deadline) {
+        int[] counted = new int[chosen.length];   // the step at which each chosen tx was last counted
+        int step = 0;
+        boolean improved = true;
+        while (improved && System.nanoTime() < deadline) {
+            improved = false;
+            for (int k = 0; k < chosen.length && System.nanoTime() < deadline; k++) {
+                if (chosen[k]) {
+                    continue;
+                }
+                step++;
+                double displaced = 0;
+                for (int g : groups.groupsOf[k]) {
+                    int c = groups.taken[g];
+                    // a chosen tx may share several groups with k, and is counted once
+                    if (c >= 0 && counted[c] != step) {
+                        counted[c] = step;
+                        displaced += weight[c];
+                    }
+                }
+                if (weight[k] > displaced) {
+                    for (int g : groups.groupsOf[k]) {
+                        int c = groups.taken[g];
+                        if (c >= 0) {
+                            chosen[c] = false;
+                            groups.drop(c);
+                        }
+                    }
+                    chosen[k] = true;
+                    groups.take(k);
+                    improved = true;
+                }
+            }
+        }
+    }
+
+    /** Exact maximum-weight independent set search, bounded by the remaining total weight */
+    private static class BranchAndBound {
+        private final double[] weight;
+        private final ClaimGroups groups;
+        private final long deadline;
+        private final Integer[] order;      // txs by decreasing weight
+        private final double[] suffixWeight;
+        private final boolean[] current;
+        private boolean[] best;
+        private double bestWeight;
+
+        BranchAndBound(double[] weight, ClaimGroups groups, long deadline, boolean[] initial) {
+            int n = weight.length;
+            this.weight = weight;
+            this.groups = groups;
+            this.deadline = deadline;
+            order = new Integer[n];
+            for (int k = 0; k < n; k++) {
+                order[k] = k;
+            }
+            Arrays.sort(order, Comparator.comparingDouble((Integer k) -> -weight[k]).thenComparingInt(k -> k));
+            suffixWeight = new double[n + 1];
+            for (int d = n - 1; d >= 0; d--) {
+                suffixWeight[d] = suffixWeight[d + 1] + weight[order[d]];
+            }
+            current = new boolean[n];
+            best = initial.clone();
+            for (int k = 0; k < n; k++) {
+                if (initial[k]) {
+                    bestWeight += weight[k];
+                }
+            }
+        }
+
+        boolean[] solve() {
+            search(0, 0);
+            return best;
+        }
+
+        private void search(int depth, double sum) {
+            if (sum + suffixWeight[depth] <= bestWeight || System.nanoTime() > deadline) {
+                return;
+            }
+            if (depth == order.length) {
+                best = current.clone();
+                bestWeight = sum;
+                return;
+            }
+            int k = order[depth];
+            if (groups.isFree(k)) {
+                current[k] = true;
+                groups.take(k);
+                search(depth + 1, sum + weight[k]);
+                groups.drop(k);
+                current[k] = false;
+            }
+            search(depth + 1, sum);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * A holding area for proposed transactions in front of a TxHandler.
+ *
+ * Transactions whose inputs are all in the ledger pool or created by pooled transactions are kept
+ * in the pool proper. Transactions claiming an output that does not exist yet are kept in a bounded
+ * orphan pool, indexed by the missing UTXO, and offered again the moment a transaction creating it
+ * enters the mempool or is accepted by the ledger. A spent-outpoint index finds double-spend
+ * conflicts in O(1) per input, without calling isValidTx; the first transaction seen wins.
+ *
+ * Admission only checks the structure and values of a transaction; signatures are verified when
+ * the candidates of an epoch are handled. When the mempool is full, the transaction with the lowest
+ * fee rate (fee per serialized byte) is evicted with its in-mempool descendants, if the new one pays
+ * a higher rate. Orphans are evicted oldest first, and expire after a number of epochs.
+ */
+public class Mempool {
+
+    /** The outcome of offering a transaction */
+    public enum Status {
+        /** added to the pool proper */
+        ADDED,
+        /** added to the orphan pool, waiting for a missing output */
+        ORPHAN,
+        /** already in the mempool */
+        DUPLICATE,
+        /** claims an output already claimed by a pooled transaction */
+        CONFLICT,
+        /** malformed, or its outputs exceed its inputs */
+        INVALID,
+        /** the mempool is full of transactions paying at least the same fee rate */
+        FULL
+    }
+
+    private final UTXOPool ledger;
+    private final int maxTxs;
+    private final int maxOrphans;
+    private final int maxOrphanAge;
+
+    /** pooled transactions by hash */
+    private final HashMap<ByteBuffer, Entry> entries = new HashMap<ByteBuffer, Entry>();
+    /** pooled transactions by fee rate, lowest first */
+    private final TreeSet<Entry> byFeeRate = new TreeSet<Entry>(
+            Comparator.comparingDouble((Entry e) -> e.feeRate).thenComparingLong(e -> e.seq));
+    /** the pooled transaction claiming each outpoint */
+    private final HashMap<UTXO, Entry> spentBy = new HashMap<UTXO, Entry>();
+    /** orphans by the output they wait for, and all orphans by hash, oldest first */
+    private final HashMap<UTXO, List<Orphan>> orphansByMissing = new HashMap<UTXO, List<Orphan>>();
+    private final LinkedHashMap<ByteBuffer, Orphan> orphans = new LinkedHashMap<ByteBuffer, Orphan>();
+
+    private long seq;
+    private long epoch;
+
+    /**
+     * Creates a mempool in front of the ledger whose current pool is {@code ledger}, holding at most
+     * {@code maxTxs} transactions and {@code maxOrphans} orphans, each orphan for at most
+     * {@code maxOrphanAge} epochs.
+     *
+     * @throws IllegalArgumentException if a bound is not positive
+     */
+    public Mempool(UTXOPool ledger, int maxTxs, int maxOrphans, int maxOrphanAge) {
+        if (maxTxs <= 0 || maxOrphans <= 0 || maxOrphanAge <= 0) {
+            throw new IllegalArgumentException("non-positive mempool bound: " + maxTxs + " transactions, "
+                    + maxOrphans + " orphans, " + maxOrphanAge + " epochs");
+        }
+        this.ledger = ledger;
+        this.maxTxs = maxTxs;
+        this.maxOrphans = maxOrphans;
+        this.maxOrphanAge = maxOrphanAge;
+    }
+
+    /** A pooled transaction */
+    private static class Entry {
+        final Transaction tx;
+        final ByteBuffer id;
+        final long fee;
+        final double feeRate;
+        final long seq;
+
+        Entry(Transaction tx, long fee, long seq) {
+            this.tx = tx;
+            this.id = ByteBuffer.wrap(tx.hash());
+            this.fee = fee;
+            this.feeRate = (double) fee / tx.getRawTx().length;
+            this.seq = seq;
+        }
+    }
+
+    /** An orphan and the epoch it arrived in */
+    private static class Orphan {
+        final Transaction tx;
+        final UTXO missing;
+        final long epoch;
+
+        Orphan(Transaction tx, UTXO missing, long epoch) {
+            this.tx = tx;
+            this.missing = missing;
+            this.epoch = epoch;
+        }
+    }
+
+    /** Offers {@code tx} to the mempool; orphans it completes are offered in turn */
+    public synchronized Status add(Transaction tx) {
+        Status status = offer(tx);
+        if (status == Status.ADDED) {
+            reofferOrphansOf(tx);
+        }
+        return status;
+    }
+
+    private Status offer(Transaction tx) {
+        if (tx.hash() == null || tx.numInputs() == 0) {
+            return Status.INVALID;
+        }
+        ByteBuffer id = ByteBuffer.wrap(tx.hash());
+        if (entries.containsKey(id) || orphans.containsKey(id)) {
+            return Status.DUPLICATE;
+        }
+
+        long fee = 0;
+        HashMap<UTXO, Boolean> claimed = new HashMap<UTXO, Boolean>();
+        for (Transaction.Input input : tx.inputs()) {
+            if (input.prevTxHash == null) {
+                return Status.INVALID;
+            }
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (claimed.put(utxo, Boolean.TRUE) != null) {
+                return Status.INVALID;
+            }
+            if (spentBy.containsKey(utxo)) {
+                return Status.CONFLICT;
+            }
+            Transaction.Output output = findOutput(utxo);
+            if (output == null) {
+                return addOrphan(tx, id, utxo);
+            }
+            fee = TxHandler.saturatedAdd(fee, output.value);
+        }
+        for (Transaction.Output output : tx.outputs()) {
+            if (output.value <= 0) {
+                return Status.INVALID;
+            }
+            fee = TxHandler.saturatedAdd(fee, -output.value);
+        }
+        if (fee < 0) {
+            return Status.INVALID;
+        }
+
+        Entry entry = new Entry(tx, fee, seq++);
+        if (entries.size() >= maxTxs) {
+            Entry lowest = byFeeRate.first();
+            if (lowest.feeRate >= entry.feeRate) {
+                return Status.FULL;
+            }
+            removeWithDescendants(lowest);
+            // the evicted transaction may have been an ancestor of tx
+            for (Transaction.Input input : tx.inputs()) {
+                if (findOutput(new UTXO(input.prevTxHash, input.outputIndex)) == null) {
+                    return Status.FULL;
+                }
+            }
+        }
+        entries.put(id, entry);
+        byFeeRate.add(entry);
+        for (Transaction.Input input : tx.inputs()) {
+            spentBy.put(new UTXO(input.prevTxHash, input.outputIndex), entry);
+        }
+        return Status.ADDED;
+    }
+
+    private Status addOrphan(Transaction tx, ByteBuffer id, UTXO missing) {
+        if (maxOrphans == 0) {
+            return Status.FULL;
+        }
+        if (orphans.size() >= maxOrphans) {
+            removeOrphan(orphans.values().iterator().next());
+        }
+        Orphan orphan = new Orphan(tx, missing, epoch);
+        orphans.put(id, orphan);
+        orphansByMissing.computeIfAbsent(missing, u -> new ArrayList<Orphan>()).add(orphan);
+        return Status.ORPHAN;
+    }
+
+    private void removeOrphan(Orphan orphan) {
+        orphans.remove(ByteBuffer.wrap(orphan.tx.hash()));
+        List<Orphan> waiting = orphansByMissing.get(orphan.missing);
+        waiting.remove(orphan);
+        if (waiting.isEmpty()) {
+            orphansByMissing.remove(orphan.missing);
+        }
+    }
+
+    /** Offers again, iteratively, the orphans waiting for outputs of {@code parent} */
+    private void reofferOrphansOf(Transaction parent) {
+        ArrayDeque<Transaction> parents = new ArrayDeque<Transaction>();
+        parents.add(parent);
+        while (!parents.isEmpty()) {
+            Transaction p = parents.poll();
+            for (int j = 0; j < p.numOutputs(); j++) {
+                List<Orphan> waiting = orphansByMissing.get(new UTXO(p.hash(), j));
+                if (waiting == null) {
+                    continue;
+                }
+                for (Orphan orphan : new ArrayList<Orphan>(waiting)) {
+                    removeOrphan(orphan);
+                    if (offer(orphan.tx) == Status.ADDED) {
+                        parents.add(orphan.tx);
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the output {@code utxo} in the ledger pool or created by a pooled transaction, or null */
+    private Transaction.Output findOutput(UTXO utxo) {
+        Transaction.Output output = ledger.getTxOutput(utxo);
+        if (output == null) {
+            Entry parent = entries.get(ByteBuffer.wrap(utxo.getTxHash()));
+            if (parent != null) {
+                output = parent.tx.output(utxo.getIndex());
+            }
+        }
+        return output;
+    }
+
+    private void removeWithDescendants(Entry entry) {
+        ArrayDeque<Entry> removed = new ArrayDeque<Entry>();
+        removed.add(entry);
+        while (!removed.isEmpty()) {
+            Entry e = removed.poll();
+            if (entries.remove(e.id) == null) {
+                continue;
+            }
+            byFeeRate.remove(e);
+            for (Transaction.Input input : e.tx.inputs()) {
+                spentBy.remove(new UTXO(input.prevTxHash, input.outputIndex), e);
+            }
+            for (int j = 0; j < e.tx.numOutputs(); j++) {
+                Entry child = spentBy.get(new UTXO(e.tx.hash(), j));
+                if (child != null) {
+                    removed.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return up to {@code max} pooled transactions to propose for the next epoch, highest fee rate
+     *         first, with every transaction after the pooled transactions it spends from, so that
+     *         handleTxs can accept them in one pass
+     */
+    public synchronized Transaction[] candidates(int max) {
+        HashMap<Entry, Integer> pendingParents = new HashMap<Entry, Integer>();
+        PriorityQueue<Entry> ready = new PriorityQueue<Entry>(
+                Comparator.comparingDouble((Entry e) -> -e.feeRate).thenComparingLong(e -> e.seq));
+        for (Entry e : entries.values()) {
+            int parents = 0;
+            for (Transaction.Input input : e.tx.inputs()) {
+                if (entries.containsKey(ByteBuffer.wrap(input.prevTxHash))) {
+                    parents++;
+                }
+            }
+            pendingParents.put(e, parents);
+            if (parents == 0) {
+                ready.add(e);
+            }
+        }
+        List<Transaction> selected = new ArrayList<Transaction>();
+        while (!ready.isEmpty() && selected.size() < max) {
+            Entry e = ready.poll();
+            selected.add(e.tx);
+            for (int j = 0; j < e.tx.numOutputs(); j++) {
+                Entry child = spentBy.get(new UTXO(e.tx.hash(), j));
+                if (child != null && pendingParents.merge(child, -1, Integer::sum) == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+        return selected.toArray(new Transaction[selected.size()]);
+    }
+
+    /**
+     * Ends an epoch in which the ledger accepted {@code acceptedTxs}: removes them from the mempool,
+     * drops pooled transactions that conflict with them, offers again the orphans waiting for their
+     * outputs and expires orphans older than the maximum age.
+     */
+    public synchronized void epochAccepted(Transaction[] acceptedTxs) {
+        epoch++;
+        for (Transaction tx : acceptedTxs) {
+            Entry entry = entries.get(ByteBuffer.wrap(tx.hash()));
+            if (entry != null) {
+                entries.remove(entry.id);
+                byFeeRate.remove(entry);
+                for (Transaction.Input input : tx.inputs()) {
+                    spentBy.remove(new UTXO(input.prevTxHash, input.outputIndex), entry);
+                }
+            }
+            for (Transaction.Input input : tx.inputs()) {
+                Entry conflicting = spentBy.get(new UTXO(input.prevTxHash, input.outputIndex));
+                if (conflicting != null) {
+                    removeWithDescendants(conflicting);
+                }
+            }
+        }
+        for (Transaction tx : acceptedTxs) {
+            reofferOrphansOf(tx);
+        }
+        Iterator<Map.Entry<ByteBuffer, Orphan>> oldest = orphans.entrySet().iterator();
+        List<Orphan> expired = new ArrayList<Orphan>();
+        while (oldest.hasNext()) {
+            Orphan orphan = oldest.next().getValue();
+            if (epoch - orphan.epoch <= maxOrphanAge) {
+                break;
+            }
+            expired.add(orphan);
+        }
+        for (Orphan orphan : expired) {
+            removeOrphan(orphan);
+        }
+    }
+
+    /** @return true if the outpoint {@code utxo} is claimed by a pooled transaction */
+    public synchronized boolean isSpent(UTXO utxo) {
+        return spentBy.containsKey(utxo);
+    }
+
+    /** @return the number of pooled transactions, orphans excluded */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of orphans */
+    public synchronized int orphanCount() {
+        return orphans.size();
+    }
+}
@@ -0,0 +1,164 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * A Merkle tree over the hashes of a list of transactions, such as the transactions accepted by
+ * one call of handleTxs, in order. As in RFC 6962, leaves are hashed as SHA-256(0x00 || tx hash)
+ * and inner nodes as SHA-256(0x01 || left || right), so that no inner node can pass for a leaf;
+ * a node without a sibling moves up a level unchanged, instead of being paired with itself, which
+ * would give the lists [a, b, c] and [a, b, c, c] the same root.
+ *
+ * All the levels are kept, so that the inclusion proof of any transaction, the siblings on its
+ * path to the root, is given in O(log n) and checked with {@link #verify}. The levels are hashed
+ * in parallel on an executor if one is given.
+ *
+ * <pre>
+ * MerkleTree tree = new MerkleTree(handler.handleTxs(possibleTxs), executor);
+ * MerkleTree.verify(tree.getRoot(), txHash, i, tree.size(), tree.getProof(i));
+ * </pre>
+ */
+public class MerkleTree {
+
+    /** number of hashes of a level below which it is hashed inline */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    });
+
+    /** the levels, from the leaves to the root */
+    private final List<byte[][]> levels = new ArrayList<byte[][]>();
+
+    /**
+     * Builds the tree of {@code txs}, which must have their hashes, hashing on {@code executor},
+     * or inline if it is null
+     */
+    public MerkleTree(Transaction[] txs, ExecutorService executor) {
+        byte[][] leaves = new byte[txs.length][];
+        run(executor, leaves.length, i -> leaves[i] = hash((byte) 0, txs[i].hash(), null));
+        levels.add(leaves);
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] below = level;
+            byte[][] above = new byte[(below.length + 1) / 2][];
+            run(executor, above.length, i -> above[i] = 2 * i + 1 < below.length
+                    ? hash((byte) 1, below[2 * i], below[2 * i + 1])
+                    : below[2 * i]);
+            levels.add(above);
+            level = above;
+        }
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    /** @return the root hash, or null for a tree without leaves */
+    public byte[] getRoot() {
+        byte[][] top = levels.get(levels.size() - 1);
+        return top.length == 0 ? null : top[0].clone();
+    }
+
+    /**
+     * @return the inclusion proof of leaf {@code index}: the hashes of the siblings on its path to
+     *         the root, from the bottom, skipping the levels where it has none
+     * @throws IndexOutOfBoundsException if there is no such leaf
+     */
+    public byte[][] getProof(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("no leaf " + index + " in a tree of " + size());
+        }
+        List<byte[]> proof = new ArrayList<byte[]>();
+        for (int l = 0; l < levels.size() - 1; l++) {
+            byte[][] level = levels.get(l);
+            int sibling = index ^ 1;
+            if (sibling < level.length) {
+                proof.add(level[sibling].clone());
+            }
+            index >>= 1;
+        }
+        return proof.toArray(new byte[proof.size()][]);
+    }
+
+    /**
+     * @return true if {@code proof} shows that the transaction of hash {@code txHash} is leaf
+     *         {@code index} of the tree of {@code size} leaves whose root is {@code root}
+     */
+    public static boolean verify(byte[] root, byte[] txHash, int index, int size, byte[][] proof) {
+        if (index < 0 || index >= size || root == null) {
+            return false;
+        }
+        byte[] node = hash((byte) 0, txHash, null);
+        int used = 0;
+        for (int width = size; width > 1; width = (width + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < width) {
+                if (used == proof.length) {
+                    return false;
+                }
+                byte[] other = proof[used++];
+                node = (index & 1) == 0 ? hash((byte) 1, node, other) : hash((byte) 1, other, node);
+            }
+            index >>= 1;
+        }
+        return used == proof.length && Arrays.equals(root, node);
+    }
+
+    private static byte[] hash(byte prefix, byte[] left, byte[] right) {
+        MessageDigest md = SHA256.get();
+        md.update(prefix);
+        md.update(left);
+        if (right != null) {
+            md.update(right);
+        }
+        return md.digest();
+    }
+
+    /** Runs {@code task} for each index below {@code n}, in chunks spread over {@code executor} if the level is large */
+    private static void run(ExecutorService executor, int n, IntConsumer task) {
+        if (executor == null || n < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < n; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        int chunks = Math.min(n / (PARALLEL_THRESHOLD / 4), 4 * Runtime.getRuntime().availableProcessors());
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int from = (int) ((long) n * c / chunks);
+            int to = (int) ((long) n * (c + 1) / chunks);
+            jobs.add(() -> {
+                for (int i = from; i < to; i++) {
+                    task.accept(i);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> job : executor.invokeAll(jobs)) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while hashing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,397 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * A UTXOPool whose entries are fixed-width records in an open-addressing hash table held in
+ * off-heap memory, instead of UTXO and Output objects in a heap map. Each record takes
+ * {@value #RECORD_SIZE} bytes: the 32-byte transaction hash, the output index, the output value
+ * and the id of the recipient's public key in the global AddressRegistry.
+ *
+ * Lookups by (transaction hash, output index) neither allocate a UTXO nor compute
+ * Arrays.hashCode: the slot is derived from the first bytes of the hash, which is already uniformly
+ * distributed. Outputs returned by the pool are materialized from their record, so they are equal,
+ * but not identical, to the outputs that were added. Only 32-byte (SHA-256) transaction hashes are
+ * supported. Copies and forks duplicate the table with one bulk memory copy per segment.
+ *
+ * The table is split into direct buffers of {@value #SEGMENT_SLOTS} records, as one buffer is
+ * indexed by int and could not hold more than about 44M records. A pool holds at most
+ * {@value #MAX_SIZE} UTXOs, in a table of at most {@value #MAX_CAPACITY} slots (48 GiB).
+ *
+ * The pool keeps no index by owner, which would put objects for every UTXO back on the heap:
+ * balance and owner queries scan the table in O(capacity), comparing address ids without
+ * allocating.
+ */
+public class OffHeapUTXOPool extends UTXOPool {
+
+    static final int HASH_SIZE = 32;
+    static final int RECORD_SIZE = 48;
+    /** log2 of the number of records per segment of the table */
+    private static final int SEGMENT_SHIFT = 16;
+    static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SLOTS - 1;
+    /** largest number of slots of the table, a power of two */
+    static final int MAX_CAPACITY = 1 << 30;
+    /** largest number of UTXOs in a pool, as the table is kept at most half full */
+    static final int MAX_SIZE = MAX_CAPACITY / 2;
+    private static final int INDEX_OFFSET = 32;
+    private static final int VALUE_OFFSET = 36;
+    /**
+     * address id + 2 of a record (NO_ADDRESS if its address is null), 0 for an empty slot and -1
+     * for a removed one
+     */
+    private static final int KEY_OFFSET = 44;
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final int NO_ADDRESS = 1;
+
+    /** the table, slot {@code s} being record {@code s & SEGMENT_MASK} of {@code segments[s >>> SEGMENT_SHIFT]} */
+    private ByteBuffer[] segments;
+    private int capacity;
+    private int size;
+    /** number of slots that are not empty, removed records included */
+    private int used;
+    private SetCommitment commitment = new SetCommitment();
+
+    /** Creates a new empty pool */
+    public OffHeapUTXOPool() {
+        this(1024);
+    }
+
+    /**
+     * Creates a new empty pool sized for about {@code expectedSize} UTXOs
+     *
+     * @throws IllegalArgumentException if {@code expectedSize} is more than {@value #MAX_SIZE}
+     */
+    public OffHeapUTXOPool(int expectedSize) {
+        if (expectedSize > MAX_SIZE) {
+            throw new IllegalArgumentException("an off-heap pool holds at most " + MAX_SIZE + " UTXOs");
+        }
+        capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        segments = allocate(capacity);
+    }
+
+    /** Creates a new pool holding the contents of {@code uPool}, of any backend */
+    public OffHeapUTXOPool(UTXOPool uPool) {
+        this(uPool.size());
+        for (UTXO ut : uPool.getAllUTXO()) {
+            addUTXO(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    private OffHeapUTXOPool(OffHeapUTXOPool uPool) {
+        capacity = uPool.capacity;
+        size = uPool.size;
+        used = uPool.used;
+        segments = copyOf(uPool.segments);
+        commitment = new SetCommitment(uPool.commitment);
+    }
+
+    @Override
+    protected boolean isHeapBacked() {
+        return false;
+    }
+
+    @Override
+    protected UTXOPool copy() {
+        return new OffHeapUTXOPool(this);
+    }
+
+    @Override
+    protected void replaceWith(UTXOPool fork) {
+        OffHeapUTXOPool other = (OffHeapUTXOPool) fork;
+        capacity = other.capacity;
+        size = other.size;
+        used = other.used;
+        segments = copyOf(other.segments);
+        commitment = new SetCommitment(other.commitment);
+    }
+
+    /**
+     * @throws IllegalStateException if the pool already holds {@value #MAX_SIZE} UTXOs, none of
+     *         which is {@code utxo}
+     */
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = checkHash(utxo.getTxHash());
+        int index = utxo.getIndex();
+        int slot = find(txHash, index);
+        if (slot < 0) {
+            if (used + 1 > capacity / 2) {
+                if (size + 1 > MAX_SIZE) {
+                    throw new IllegalStateException("an off-heap pool holds at most " + MAX_SIZE + " UTXOs");
+                }
+                resize(size + 1 > capacity / 4 && capacity < MAX_CAPACITY ? capacity * 2 : capacity);
+            }
+            slot = freeSlot(txHash, index);
+            ByteBuffer table = segment(slot);
+            int offset = offset(slot);
+            if (table.getInt(offset + KEY_OFFSET) == EMPTY) {
+                used++;
+            }
+            for (int i = 0; i < HASH_SIZE; i++) {
+                table.put(offset + i, txHash[i]);
+            }
+            table.putInt(offset + INDEX_OFFSET, index);
+            size++;
+        } else {
+            uncommit(slot, txHash, index);
+        }
+        ByteBuffer table = segment(slot);
+        int offset = offset(slot);
+        int addressId = txOut.addressId();
+        commitment.add(txHash, index, txOut.value, addressId < 0 ? null : AddressRegistry.global().getEncoded(addressId));
+        table.putLong(offset + VALUE_OFFSET, txOut.value);
+        table.putInt(offset + KEY_OFFSET, addressId + 2);
+        modified();
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        int slot = txHash.length == HASH_SIZE ? find(txHash, utxo.getIndex()) : -1;
+        if (slot >= 0) {
+            uncommit(slot, txHash, utxo.getIndex());
+            segment(slot).putInt(offset(slot) + KEY_OFFSET, REMOVED);
+            size--;
+        }
+        modified();
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        int slot = txHash.length == HASH_SIZE ? find(txHash, index) : -1;
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer table = segment(slot);
+        int offset = offset(slot);
+        long value = table.getLong(offset + VALUE_OFFSET);
+        int key = table.getInt(offset + KEY_OFFSET);
+        return new Transaction.Output(value, key == NO_ADDRESS ? null : AddressRegistry.global().get(key - 2));
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /** @return true if output {@code index} of the transaction whose hash is {@code txHash} is in the pool */
+    public boolean contains(byte[] txHash, int index) {
+        return txHash.length == HASH_SIZE && find(txHash, index) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (ByteBuffer segment : segments) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size);
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer table = segment(slot);
+            int offset = offset(slot);
+            if (table.getInt(offset + KEY_OFFSET) > 0) {
+                for (int i = 0; i < HASH_SIZE; i++) {
+                    txHash[i] = table.get(offset + i);
+                }
+                allUTXO.add(new UTXO(txHash, table.getInt(offset + INDEX_OFFSET)));
+            }
+        }
+        return allUTXO;
+    }
+
+    @Override
+    public SetCommitment getCommitment() {
+        return new SetCommitment(commitment);
+    }
+
+    /** Removes the record in {@code slot}, of ({@code txHash}, {@code index}), from the commitment */
+    private void uncommit(int slot, byte[] txHash, int index) {
+        ByteBuffer table = segment(slot);
+        int offset = offset(slot);
+        int key = table.getInt(offset + KEY_OFFSET);
+        commitment.remove(txHash, index, table.getLong(offset + VALUE_OFFSET),
+                key == NO_ADDRESS ? null : AddressRegistry.global().getEncoded(key - 2));
+    }
+
+    /** @return the balance of {@code owner}, in O(capacity) */
+    @Override
+    public long getBalance(PublicKey owner) {
+        int key = ownerKey(owner);
+        long balance = 0;
+        for (int slot = 0; key > 0 && slot < capacity; slot++) {
+            ByteBuffer table = segment(slot);
+            int offset = offset(slot);
+            if (table.getInt(offset + KEY_OFFSET) == key) {
+                balance += table.getLong(offset + VALUE_OFFSET);
+            }
+        }
+        return balance;
+    }
+
+    /** @return the number of UTXOs paying {@code owner}, in O(capacity) */
+    @Override
+    public int getOwnedCount(PublicKey owner) {
+        int key = ownerKey(owner);
+        int count = 0;
+        for (int slot = 0; key > 0 && slot < capacity; slot++) {
+            if (segment(slot).getInt(offset(slot) + KEY_OFFSET) == key) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Calls {@code action} on every UTXO paying {@code owner} and its output, in O(capacity) */
+    @Override
+    public void forEachOwned(PublicKey owner, BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        int key = ownerKey(owner);
+        PublicKey address = key > 0 ? AddressRegistry.global().get(key - 2) : null;
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int slot = 0; key > 0 && slot < capacity; slot++) {
+            ByteBuffer table = segment(slot);
+            int offset = offset(slot);
+            if (table.getInt(offset + KEY_OFFSET) == key) {
+                for (int i = 0; i < HASH_SIZE; i++) {
+                    txHash[i] = table.get(offset + i);
+                }
+                action.accept(new UTXO(txHash, table.getInt(offset + INDEX_OFFSET)),
+                        new Transaction.Output(table.getLong(offset + VALUE_OFFSET), address));
+            }
+        }
+    }
+
+    /** @return the KEY_OFFSET value of the records paying {@code owner}, or 0 if no output ever paid it */
+    private static int ownerKey(PublicKey owner) {
+        int id = owner == null ? -1 : AddressRegistry.global().idOf(owner);
+        return id < 0 ? 0 : id + 2;
+    }
+
+    /** @return the slot of the record of ({@code txHash}, {@code index}), or -1 if there is none */
+    private int find(byte[] txHash, int index) {
+        int mask = capacity - 1;
+        for (int slot = (int) slotHash(txHash, index) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer table = segment(slot);
+            int offset = offset(slot);
+            int state = table.getInt(offset + KEY_OFFSET);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state != REMOVED && matches(table, offset, txHash, index)) {
+                return slot;
+            }
+        }
+    }
+
+    /** @return the first empty or removed slot on the probe sequence of ({@code txHash}, {@code index}) */
+    private int freeSlot(byte[] txHash, int index) {
+        int mask = capacity - 1;
+        for (int slot = (int) slotHash(txHash, index) & mask; ; slot = (slot + 1) & mask) {
+            if (segment(slot).getInt(offset(slot) + KEY_OFFSET) <= 0) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean matches(ByteBuffer table, int offset, byte[] txHash, int index) {
+        if (table.getInt(offset + INDEX_OFFSET) != index) {
+            return false;
+        }
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (table.get(offset + i) != txHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Rehashes the live records into a table of {@code newCapacity} slots, dropping removed ones */
+    private void resize(int newCapacity) {
+        ByteBuffer[] oldSegments = segments;
+        int oldCapacity = capacity;
+        segments = allocate(newCapacity);
+        capacity = newCapacity;
+        used = size;
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer old = oldSegments[slot >>> SEGMENT_SHIFT];
+            int offset = offset(slot);
+            if (old.getInt(offset + KEY_OFFSET) > 0) {
+                for (int i = 0; i < HASH_SIZE; i++) {
+                    txHash[i] = old.get(offset + i);
+                }
+                int target = freeSlot(txHash, old.getInt(offset + INDEX_OFFSET));
+                ByteBuffer table = segment(target);
+                int targetOffset = offset(target);
+                for (int i = 0; i < RECORD_SIZE; i++) {
+                    table.put(targetOffset + i, old.get(offset + i));
+                }
+            }
+        }
+    }
+
+    /** @return the segment holding {@code slot} */
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    /** @return the offset of {@code slot} in its segment */
+    private static int offset(int slot) {
+        return (slot & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    /** @return the zeroed segments of a table of {@code capacity} slots, a power of two */
+    private static ByteBuffer[] allocate(int capacity) {
+        ByteBuffer[] segments = new ByteBuffer[(capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(Math.min(capacity, SEGMENT_SLOTS) * RECORD_SIZE);
+        }
+        return segments;
+    }
+
+    private static long slotHash(byte[] txHash, int index) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (txHash[i] & 0xff);
+        }
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static byte[] checkHash(byte[] txHash) {
+        if (txHash.length != HASH_SIZE) {
+            throw new IllegalArgumentException("transaction hashes must be " + HASH_SIZE + " bytes long");
+        }
+        return txHash;
+    }
+
+    private static ByteBuffer[] copyOf(ByteBuffer[] segments) {
+        ByteBuffer[] copy = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            copy[i] = ByteBuffer.allocateDirect(segments[i].capacity());
+            copy[i].put(segments[i].duplicate().clear());
+        }
+        return copy;
+    }
+}
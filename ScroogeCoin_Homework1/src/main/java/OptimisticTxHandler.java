@@ -0,0 +1,273 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * A TxHandler whose handleTxs validates the transactions of an epoch optimistically in parallel,
+ * and still accepts exactly the transactions that TxHandler.handleTxs accepts, in the same order.
+ *
+ * The serial order is the array order: transaction i must be checked against the pool as left by
+ * the accepted transactions before it. Every transaction is executed against a multi-version view
+ * of the pool, in which the UTXOs created and spent by transaction j are versions written by j;
+ * transaction i reads, for each UTXO it claims, the latest version written by a transaction before
+ * it, or the pool if there is none, records the versions it read, and writes its own versions if
+ * it is valid. Executions run concurrently, so a transaction may read versions that a transaction
+ * before it later rewrites; validation then finds its read set changed, and it is executed again.
+ * The epoch is done when every transaction validates.
+ *
+ * Each round executes the pending transactions in parallel and validates those after the lowest
+ * one of them, which is final. On an epoch with few in-epoch dependencies, one or two rounds
+ * suffice and throughput grows with the threads of the executor; a long chain of dependent
+ * transactions proposed in reverse order takes up to one round per link. Signature checks are
+ * remembered across the executions of a transaction.
+ */
+public class OptimisticTxHandler extends TxHandler {
+
+    /** the output of a version recording that a UTXO was spent */
+    private static final Transaction.Output SPENT = new Transaction.Output(0, null);
+
+    private int lastRounds;
+    private int lastExecutions;
+
+    /**
+     * Creates a handler executing transactions on {@code executor}, or inline if it is null, which
+     * is only useful to compare with the parallel handler
+     */
+    public OptimisticTxHandler(UTXOPool uPool, ExecutorService executor) {
+        super(uPool, executor);
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, returning the
+     * transactions TxHandler.handleTxs would accept, in the same order, and updating the current
+     * UTXO pool as appropriate.
+     */
+    @Override
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long start = startTimer();
+        Epoch epoch = new Epoch(possibleTxs);
+        int n = possibleTxs.length;
+        int[] pending = new int[n];
+        for (int i = 0; i < n; i++) {
+            pending[i] = i;
+        }
+        int rounds = 0;
+        int executions = 0;
+        while (pending.length > 0) {
+            rounds++;
+            executions += pending.length;
+            runAll(pending, epoch::execute);
+
+            // transactions up to the lowest one executed read versions that did not change
+            int lowest = pending[0];
+            int[] later = new int[n - lowest - 1];
+            for (int k = 0; k < later.length; k++) {
+                later[k] = lowest + 1 + k;
+            }
+            boolean[] stale = new boolean[n];
+            runAll(later, i -> stale[i] = !epoch.validate(i));
+            int count = 0;
+            for (int i : later) {
+                if (stale[i]) {
+                    later[count++] = i;
+                }
+            }
+            pending = Arrays.copyOf(later, count);
+        }
+        lastRounds = rounds;
+        lastExecutions = executions;
+
+        ArrayList<Transaction> acceptedTxs = new ArrayList<Transaction>();
+        for (int i = 0; i < n; i++) {
+            Execution execution = epoch.executions[i];
+            if (execution.rejection == null) {
+                acceptedTxs.add(possibleTxs[i]);
+                applyTx(possibleTxs[i]);
+            }
+            decided(possibleTxs[i], execution.rejection);
+        }
+        epochHandled(n, acceptedTxs.size(), start);
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /** @return the number of rounds the last handleTxs took */
+    public int getLastRounds() {
+        return lastRounds;
+    }
+
+    /** @return the number of transaction executions of the last handleTxs, re-executions included */
+    public int getLastExecutions() {
+        return lastExecutions;
+    }
+
+    /** Runs {@code task} for each of {@code indices}, spread over the executor, and waits for all */
+    private void runAll(int[] indices, IntConsumer task) {
+        ExecutorService executor = getExecutor();
+        if (executor == null || indices.length <= 1) {
+            for (int i : indices) {
+                task.accept(i);
+            }
+            return;
+        }
+        int chunks = Math.min(indices.length, 4 * Runtime.getRuntime().availableProcessors());
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int first = c;
+            jobs.add(() -> {
+                for (int k = first; k < indices.length; k += chunks) {
+                    task.accept(indices[k]);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> job : executor.invokeAll(jobs)) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while handling transactions", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** A version of a UTXO written by a transaction of the epoch: its output, or SPENT */
+    private static class Version {
+        final Transaction.Output output;
+
+        Version(Transaction.Output output) {
+            this.output = output;
+        }
+    }
+
+    /** The outcome of the last execution of a transaction */
+    private static class Execution {
+        /** null if the transaction is valid, and otherwise why it is not */
+        Rejection rejection;
+        /** the UTXOs read, and the version read of each (null for the pool) */
+        final List<UTXO> reads = new ArrayList<UTXO>();
+        final List<Version> readVersions = new ArrayList<Version>();
+        /** the UTXOs this execution wrote versions of */
+        final List<UTXO> writes = new ArrayList<UTXO>();
+    }
+
+    /** The multi-version state of one epoch */
+    private final class Epoch {
+        final Transaction[] txs;
+        /** versions of the UTXOs written by the transactions of the epoch, by transaction index */
+        final ConcurrentHashMap<UTXO, ConcurrentSkipListMap<Integer, Version>> versions =
+                new ConcurrentHashMap<UTXO, ConcurrentSkipListMap<Integer, Version>>();
+        final Execution[] executions;
+        /** per transaction and input, the key last checked and whether the signature was valid */
+        final PublicKey[][] checkedKeys;
+        final boolean[][] checkedResults;
+
+        Epoch(Transaction[] txs) {
+            this.txs = txs;
+            executions = new Execution[txs.length];
+            checkedKeys = new PublicKey[txs.length][];
+            checkedResults = new boolean[txs.length][];
+            for (int i = 0; i < txs.length; i++) {
+                checkedKeys[i] = new PublicKey[txs[i].numInputs()];
+                checkedResults[i] = new boolean[txs[i].numInputs()];
+            }
+        }
+
+        /** @return the latest version of {@code utxo} written before transaction {@code i}, or null */
+        Version read(UTXO utxo, int i) {
+            ConcurrentSkipListMap<Integer, Version> written = versions.get(utxo);
+            if (written == null) {
+                return null;
+            }
+            Map.Entry<Integer, Version> latest = written.lowerEntry(i);
+            return latest == null ? null : latest.getValue();
+        }
+
+        /** Executes transaction {@code i}, replacing the versions written by its last execution */
+        void execute(int i) {
+            Transaction tx = txs[i];
+            Execution execution = new Execution();
+            Function<UTXO, Transaction.Output> lookup = utxo -> {
+                Version version = read(utxo, i);
+                execution.reads.add(utxo);
+                execution.readVersions.add(version);
+                if (version == null) {
+                    return uPool.getTxOutput(utxo);
+                }
+                return version.output == SPENT ? null : version.output;
+            };
+            Transaction.Output[] correspondOutputs = new Transaction.Output[tx.numInputs()];
+            long start = startTimer();
+            execution.rejection = checkCheapConditions(tx, lookup, correspondOutputs);
+            stopTimer(Stage.LOOKUP, start);
+            for (int index = 0; execution.rejection == null && index < correspondOutputs.length; index++) {
+                if (!verify(i, index, correspondOutputs[index].address)) {
+                    execution.rejection = Rejection.INVALID_SIGNATURE;
+                }
+            }
+
+            // as applyTx: the outputs are added, then the inputs removed; the outputs are the tx's own,
+            // not copies, so that executing it again writes the same versions
+            LinkedHashMap<UTXO, Transaction.Output> writes = new LinkedHashMap<UTXO, Transaction.Output>();
+            if (execution.rejection == null) {
+                for (int j = 0; j < tx.numOutputs(); j++) {
+                    writes.put(new UTXO(tx.hash(), j), tx.output(j));
+                }
+                for (Transaction.Input input : tx.inputs()) {
+                    writes.put(new UTXO(input.prevTxHash, input.outputIndex), SPENT);
+                }
+            }
+            Execution previous = executions[i];
+            if (previous != null) {
+                for (UTXO utxo : previous.writes) {
+                    if (!writes.containsKey(utxo)) {
+                        versions.get(utxo).remove(i);
+                    }
+                }
+            }
+            for (Map.Entry<UTXO, Transaction.Output> write : writes.entrySet()) {
+                Transaction.Output output = write.getValue();
+                // an unchanged version is kept, so that the transactions that read it stay valid
+                versions.computeIfAbsent(write.getKey(), utxo -> new ConcurrentSkipListMap<Integer, Version>())
+                        .compute(i, (index, old) -> old != null && old.output == output ? old : new Version(output));
+                execution.writes.add(write.getKey());
+            }
+            executions[i] = execution;
+        }
+
+        /** @return true if the versions read by the last execution of transaction {@code i} are still the latest */
+        boolean validate(int i) {
+            Execution execution = executions[i];
+            for (int k = 0; k < execution.reads.size(); k++) {
+                if (read(execution.reads.get(k), i) != execution.readVersions.get(k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Checks the signature of input {@code index} of transaction {@code i} against {@code pk}, once per key */
+        private boolean verify(int i, int index, PublicKey pk) {
+            if (checkedKeys[i][index] != pk || pk == null) {
+                checkedResults[i][index] = verifySignature(pk, txs[i], index);
+                checkedKeys[i][index] = pk;
+            }
+            return checkedResults[i][index];
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.util.function.BiConsumer;
+
+/**
+ * A hash array mapped trie: a hash map whose structure is shared between forks, so that fork() takes
+ * O(1) time and memory and a fork never sees changes made to the map it was forked from, nor the
+ * other way round.
+ *
+ * Every map owns an edit token, and every trie node records the token of the map that created it.
+ * A map updates the nodes it owns in place and copies only the nodes on the path to a change that
+ * it shares with other maps. Forking gives both maps new tokens, so from then on all existing
+ * nodes are shared and copied on write. A map is not safe for concurrent updates, but distinct
+ * forks may be used by distinct threads.
+ */
+public class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private Node root;
+    private int size;
+    private Object edit = new Object();
+
+    /** Creates a new empty map */
+    public PersistentHashMap() {
+    }
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** @return an independent copy of this map, in O(1) */
+    public PersistentHashMap<K, V> fork() {
+        edit = new Object();
+        return new PersistentHashMap<K, V>(root, size);
+    }
+
+    /** @return the number of mappings */
+    public int size() {
+        return size;
+    }
+
+    /** @return the value mapped to {@code key}, or null if there is none */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return root == null ? null : (V) root.find(0, hash(key), key);
+    }
+
+    /** @return true if there is a mapping for {@code key} */
+    public boolean containsKey(Object key) {
+        return root != null && root.find(0, hash(key), key) != null;
+    }
+
+    /** Maps {@code key} to {@code value}, which must not be null, and returns the previous value or null */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        Change change = new Change();
+        Node node = root == null ? new BitmapNode(edit, 0, new Object[0]) : root;
+        root = node.put(edit, 0, hash(key), key, value, change);
+        if (change.previous == null) {
+            size++;
+        }
+        return (V) change.previous;
+    }
+
+    /** Removes the mapping for {@code key} and returns its value, or null if there was none */
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (root == null) {
+            return null;
+        }
+        Change change = new Change();
+        root = root.remove(edit, 0, hash(key), key, change);
+        if (change.previous != null) {
+            size--;
+        }
+        return (V) change.previous;
+    }
+
+    /** Calls {@code action} on every mapping, in no particular order */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** previous value of the mapping changed by a put or remove */
+    private static class Change {
+        Object previous;
+    }
+
+    private abstract static class Node {
+        /** token of the map allowed to update this node in place */
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        /** @return this node, or the copy of it that holds the new mapping */
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, Change change);
+
+        /** @return this node, the copy of it without the mapping, or null if it is left empty */
+        abstract Node remove(Object edit, int shift, int hash, Object key, Change change);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * A node with up to 32 slots selected by 5 bits of the hash. The pairs of {@code array} are
+     * either a key and its value, or null and the child node holding the keys of that slot.
+     */
+    private static class BitmapNode extends Node {
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private BitmapNode editable(Object edit) {
+            return this.edit == edit ? this : new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, Change change) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                BitmapNode node = editable(edit);
+                node.bitmap |= bit;
+                node.array = grown;
+                return node;
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            Object newKey = k;
+            Object newValue;
+            if (k == null) {
+                Node child = ((Node) v).put(edit, shift + BITS, hash, key, value, change);
+                if (child == v) {
+                    return this;
+                }
+                newValue = child;
+            } else if (key.equals(k)) {
+                change.previous = v;
+                if (v == value) {
+                    return this;
+                }
+                newValue = value;
+            } else {
+                newKey = null;
+                newValue = split(edit, shift + BITS, k, v, hash, key, value);
+            }
+            BitmapNode node = editable(edit);
+            node.array[i] = newKey;
+            node.array[i + 1] = newValue;
+            return node;
+        }
+
+        /** @return a node holding both mappings, which share the slot of a node at {@code shift - BITS} */
+        private static Node split(Object edit, int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+            int hash1 = hash(k1);
+            if (hash1 == hash2) {
+                return new CollisionNode(edit, hash1, new Object[] { k1, v1, k2, v2 });
+            }
+            Change ignored = new Change();
+            return new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, shift, hash1, k1, v1, ignored)
+                    .put(edit, shift, hash2, k2, v2, ignored);
+        }
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key, Change change) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(edit, shift + BITS, hash, key, change);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    BitmapNode node = editable(edit);
+                    node.array[i + 1] = child;
+                    return node;
+                }
+            } else if (key.equals(k)) {
+                change.previous = v;
+            } else {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            BitmapNode node = editable(edit);
+            node.bitmap &= ~bit;
+            node.array = shrunk;
+            return node;
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+    }
+
+    /** A node holding the key/value pairs of keys whose hashes are all equal */
+    private static class CollisionNode extends Node {
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private CollisionNode editable(Object edit) {
+            return this.edit == edit ? this : new CollisionNode(edit, hash, array.clone());
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = this.hash == hash ? indexOf(key) : -1;
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, Change change) {
+            if (this.hash != hash) {
+                // move this node one level down, next to the new key
+                int bit = 1 << ((this.hash >>> shift) & MASK);
+                return new BitmapNode(edit, bit, new Object[] { null, this })
+                        .put(edit, shift, hash, key, value, change);
+            }
+            int i = indexOf(key);
+            CollisionNode node = editable(edit);
+            if (i >= 0) {
+                change.previous = array[i + 1];
+                node.array[i + 1] = value;
+            } else {
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, array.length);
+                grown[array.length] = key;
+                grown[array.length + 1] = value;
+                node.array = grown;
+            }
+            return node;
+        }
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key, Change change) {
+            int i = this.hash == hash ? indexOf(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            change.previous = array[i + 1];
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            CollisionNode node = editable(edit);
+            node.array = shrunk;
+            return node;
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A rolling commitment to a set of UTXOs: the sum, modulo 2^256, of the SHA-256 hashes of its
+ * entries, each hash covering the length-prefixed transaction hash, output index, value and
+ * encoded address of an entry. Since addition commutes and has an inverse, an entry is added or removed in O(1)
+ * whatever the order of the changes, two pools holding the same entries have the same
+ * commitment, and the commitments of disjoint parts of a set add up to that of the set.
+ *
+ * Comparing two commitments tells in O(1) whether two pools diverged, as long as their contents
+ * are not chosen adversarially: unlike MuHash, a sum of hashes can be matched by a crafted set of
+ * entries with generalized birthday attacks. A commitment is not thread-safe.
+ */
+public final class SetCommitment {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    });
+
+    /** the sum, as four 64-bit limbs, least significant first */
+    private final long[] limbs = new long[4];
+
+    /** Creates the commitment of the empty set */
+    public SetCommitment() {
+    }
+
+    /** Creates a copy of {@code other} */
+    public SetCommitment(SetCommitment other) {
+        System.arraycopy(other.limbs, 0, limbs, 0, limbs.length);
+    }
+
+    /** Adds the entry mapping {@code utxo} to {@code txOut} */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        add(utxo.getTxHash(), utxo.getIndex(), txOut.value, txOut.encodedAddress());
+    }
+
+    /** Removes the entry mapping {@code utxo} to {@code txOut}, which must have been added */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        remove(utxo.getTxHash(), utxo.getIndex(), txOut.value, txOut.encodedAddress());
+    }
+
+    /** Adds the entry of the given fields, {@code address} being the encoded key, or null for no address */
+    void add(byte[] txHash, int index, long value, byte[] address) {
+        long[] h = entryHash(txHash, index, value, address);
+        long carry = 0;
+        for (int i = 0; i < limbs.length; i++) {
+            long a = limbs[i];
+            long s = a + h[i] + carry;
+            // a carry out of the limb happened if the sum wrapped around
+            carry = Long.compareUnsigned(s, a) < 0 || (carry != 0 && s == a) ? 1 : 0;
+            limbs[i] = s;
+        }
+    }
+
+    /** Removes the entry of the given fields, {@code address} being the encoded key, or null for no address */
+    void remove(byte[] txHash, int index, long value, byte[] address) {
+        long[] h = entryHash(txHash, index, value, address);
+        long borrow = 0;
+        for (int i = 0; i < limbs.length; i++) {
+            long a = limbs[i];
+            long d = a - h[i] - borrow;
+            borrow = Long.compareUnsigned(a, h[i]) < 0 || (borrow != 0 && a == h[i]) ? 1 : 0;
+            limbs[i] = d;
+        }
+    }
+
+    /** Adds all the entries committed to by {@code other} */
+    public void add(SetCommitment other) {
+        long carry = 0;
+        for (int i = 0; i < limbs.length; i++) {
+            long a = limbs[i];
+            long b = other.limbs[i];
+            long s = a + b + carry;
+            carry = Long.compareUnsigned(s, a) < 0 || (carry != 0 && s == a) ? 1 : 0;
+            limbs[i] = s;
+        }
+    }
+
+    /** @return the commitment as 32 bytes, most significant first */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            bytes[i] = (byte) (limbs[3 - i / 8] >>> (56 - 8 * (i % 8)));
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SetCommitment)) {
+            return false;
+        }
+        long[] o = ((SetCommitment) other).limbs;
+        return limbs[0] == o[0] && limbs[1] == o[1] && limbs[2] == o[2] && limbs[3] == o[3];
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(limbs[0]);
+    }
+
+    /** @return the SHA-256 hash of an entry, as four limbs, least significant first */
+    private static long[] entryHash(byte[] txHash, int index, long value, byte[] address) {
+        MessageDigest md = SHA256.get();
+        int length = txHash.length;
+        md.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+        md.update(txHash);
+        md.update(new byte[] {
+                (byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index,
+                (byte) (value >>> 56), (byte) (value >>> 48), (byte) (value >>> 40), (byte) (value >>> 32),
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+        if (address != null) {
+            md.update(address);
+        }
+        byte[] digest = md.digest();
+        long[] h = new long[4];
+        for (int i = 0; i < 32; i++) {
+            h[3 - i / 8] = (h[3 - i / 8] << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of successful signature verifications, so that transactions proposed again in a
+ * later epoch do not pay for their signature checks twice.
+ *
+ * An entry is the SHA-256 digest of the (public key, SHA-256 of the signed data, signature) triple,
+ * so a hit is exactly as trustworthy as the verification it replaces, whatever hash the
+ * transaction claims. Only valid signatures are recorded; the least recently used entry is evicted
+ * when the cache is full. The cache may be shared by several handlers and threads.
+ */
+public class SignatureCache {
+
+    private final Map<ByteBuffer, Boolean> verified;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache remembering at most {@code capacity} verified signatures */
+    public SignatureCache(int capacity) {
+        verified = new Crypto.LruMap<ByteBuffer, Boolean>(capacity);
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}, calling Crypto.verifySignature only if that was not verified before
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (signature == null) {
+            return Crypto.verifySignature(pubKey, message, signature);
+        }
+        return verifySignature(pubKey, message, sha256(message), signature);
+    }
+
+    /**
+     * Same as verifySignature(pubKey, message, signature), where {@code messageDigest} is the
+     * SHA-256 digest of {@code message}, as a sealed transaction keeps for each input
+     */
+    boolean verifySignature(PublicKey pubKey, byte[] message, byte[] messageDigest, byte[] signature) {
+        if (signature == null) {
+            return Crypto.verifySignature(pubKey, message, signature);
+        }
+        ByteBuffer id = digest(pubKey, messageDigest, signature);
+        synchronized (verified) {
+            if (verified.get(id) != null) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        boolean valid = Crypto.verifySignature(pubKey, message, signature);
+        if (valid) {
+            synchronized (verified) {
+                verified.put(id, Boolean.TRUE);
+            }
+        }
+        return valid;
+    }
+
+    /** @return the number of verifications answered from the cache */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of verifications that had to call Crypto */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of verified signatures currently cached */
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+
+    /** Forgets all cached verifications; the counters are kept */
+    public void clear() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    /** @return the digest identifying the triple, each part prefixed by its length */
+    private static ByteBuffer digest(PublicKey pubKey, byte[] messageDigest, byte[] signature) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] key = pubKey.getEncoded();
+            md.update(ByteBuffer.allocate(3 * Integer.BYTES)
+                    .putInt(key.length).putInt(messageDigest.length).putInt(signature.length).array());
+            md.update(key);
+            md.update(messageDigest);
+            md.update(signature);
+            return ByteBuffer.wrap(md.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private static byte[] sha256(byte[] message) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(message);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * Handles an epoch incrementally: transactions are submitted one at a time or in micro-batches, and
+ * each one is validated and applied to the pool of the underlying TxHandler as soon as it arrives,
+ * with an accept or reject event reported to a listener right away. Only the accepted transactions
+ * are kept until the epoch is sealed, so the epoch never has to be held in memory as a whole.
+ *
+ * By default a transaction claiming an output that is not in the pool is rejected at once, so that
+ * sealing returns exactly what handleTxs returns for the transactions in submission order. With
+ * orphan holding enabled, such a transaction is instead held until a transaction creating the
+ * missing output is accepted, and rejected only if the epoch is sealed before that.
+ *
+ * The handler can also subscribe to a {@link Flow.Publisher} of transactions; it requests them one
+ * by one. All methods may be called from several threads; transactions are handled one at a time.
+ */
+public class StreamingTxHandler implements Flow.Subscriber<Transaction> {
+
+    /** Receives the decision on every submitted transaction */
+    public interface Listener {
+        void onAccepted(Transaction tx);
+
+        void onRejected(Transaction tx, TxHandler.Rejection reason);
+    }
+
+    private final TxHandler handler;
+    private final Listener listener;
+    /** maximum number of held orphans, 0 if orphans are rejected at once */
+    private final int maxOrphans;
+
+    private List<Transaction> accepted = new ArrayList<Transaction>();
+    /** held orphans, by the UTXO they are waiting for */
+    private HashMap<UTXO, List<Transaction>> orphans = new HashMap<UTXO, List<Transaction>>();
+    private int orphanCount;
+    /** number of transactions submitted since the previous seal */
+    private int proposed;
+    private Flow.Subscription subscription;
+
+    /**
+     * Creates a streaming handler updating the pool of {@code handler} and reporting to
+     * {@code listener}, which rejects orphans at once
+     */
+    public StreamingTxHandler(TxHandler handler, Listener listener) {
+        this(handler, listener, 0);
+    }
+
+    /**
+     * Creates a streaming handler holding up to {@code maxOrphans} transactions whose claimed
+     * outputs are not in the pool yet; further orphans are rejected at once.
+     */
+    public StreamingTxHandler(TxHandler handler, Listener listener, int maxOrphans) {
+        this.handler = handler;
+        this.listener = listener;
+        this.maxOrphans = maxOrphans;
+    }
+
+    /** Validates {@code tx} and, if valid, applies it to the pool */
+    public synchronized void submit(Transaction tx) {
+        handle(tx, null);
+    }
+
+    /**
+     * Validates and applies the micro-batch {@code txs} in order. If the handler was created with an
+     * executor, the signatures of the whole batch are verified in parallel first.
+     */
+    public synchronized void submitAll(Transaction[] txs) {
+        TxHandler.PreverifiedTx[] preverified = handler.isParallel() ? handler.verifySignatures(txs) : null;
+        for (int i = 0; i < txs.length; i++) {
+            handle(txs[i], preverified == null ? null : preverified[i]);
+        }
+    }
+
+    /**
+     * Ends the epoch: rejects the orphans still held and returns the transactions accepted since
+     * the previous seal, in the order they were applied.
+     */
+    public synchronized Transaction[] seal() {
+        for (List<Transaction> waiting : orphans.values()) {
+            for (Transaction tx : waiting) {
+                listener.onRejected(tx, TxHandler.Rejection.NOT_IN_POOL);
+                handler.decided(tx, TxHandler.Rejection.NOT_IN_POOL);
+            }
+        }
+        orphans = new HashMap<UTXO, List<Transaction>>();
+        orphanCount = 0;
+        Transaction[] epoch = accepted.toArray(new Transaction[accepted.size()]);
+        accepted = new ArrayList<Transaction>();
+        handler.epochHandled(proposed, epoch.length, 0);   // the epoch spans many calls and is not timed
+        proposed = 0;
+        return epoch;
+    }
+
+    private void handle(Transaction tx, TxHandler.PreverifiedTx preverified) {
+        proposed++;
+        ArrayDeque<Transaction> offered = new ArrayDeque<Transaction>();
+        offer(tx, preverified, offered);
+        // orphans waiting for the outputs of accepted transactions are offered again, iteratively
+        // so that long chains of orphans do not nest calls
+        while (!offered.isEmpty()) {
+            offer(offered.poll(), null, offered);
+        }
+    }
+
+    private void offer(Transaction tx, TxHandler.PreverifiedTx preverified, ArrayDeque<Transaction> offered) {
+        UTXO missing = orphanCount < maxOrphans ? missingInput(tx) : null;
+        if (missing != null) {
+            orphans.computeIfAbsent(missing, u -> new ArrayList<Transaction>()).add(tx);
+            orphanCount++;
+            return;
+        }
+        TxHandler.Rejection reason = handler.checkTx(tx, preverified);
+        if (reason != null) {
+            if (preverified != null) {
+                preverified.cancel();
+            }
+            listener.onRejected(tx, reason);
+            handler.decided(tx, reason);
+            return;
+        }
+        handler.applyTx(tx);
+        accepted.add(tx);
+        listener.onAccepted(tx);
+        handler.decided(tx, null);
+
+        for (int j = 0; j < tx.numOutputs() && orphanCount > 0; j++) {
+            List<Transaction> waiting = orphans.remove(new UTXO(tx.hash(), j));
+            if (waiting != null) {
+                orphanCount -= waiting.size();
+                offered.addAll(waiting);
+            }
+        }
+    }
+
+    /** @return a UTXO claimed by {@code tx} that is not in the pool, or null if there is none */
+    private UTXO missingInput(Transaction tx) {
+        for (Transaction.Input input : tx.inputs()) {
+            if (input.prevTxHash == null) {
+                return null;
+            }
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (!handler.uPool.contains(utxo)) {
+                return utxo;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(Transaction tx) {
+        Flow.Subscription s;
+        synchronized (this) {
+            handle(tx, null);
+            s = subscription;
+        }
+        s.request(1);
+    }
+
+    /** The end of the stream does not end the epoch, which is still ended by seal() */
+    @Override
+    public void onError(Throwable throwable) {
+    }
+
+    /** The end of the stream does not end the epoch, which is still ended by seal() */
+    @Override
+    public void onComplete() {
+    }
+}
@@ -1,13 +1,33 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
+/**
+ * A transaction: inputs claiming outputs of earlier transactions, and new outputs.
+ *
+ * A transaction is built by adding inputs, outputs and signatures, and can then be sealed with
+ * seal(). A sealed transaction computes its hash, the data to sign and its digest for every input,
+ * and its total output value once, and keeps them; its methods that would change it, and its input
+ * and output lists, throw instead. Since the fields of Input and Output are public and can not be
+ * guarded, sealing takes private copies of them, and a sealed transaction hands out only copies
+ * of them and of its hash, so that nothing a caller changes reaches the values it was checked
+ * against. A copy made with the copy constructor is not sealed.
+ */
 public class Transaction {
 
-    public class Input {
+    /** number of base units in one coin; output values are whole numbers of base units */
+    public static final long UNITS_PER_COIN = 100000000L;
+
+    public static class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
         /** used output's index in the previous transaction */
@@ -31,22 +51,94 @@ public class Transaction {
         }
     }
 
-    public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+    public static class Output {
+        /** value of the output, in base units (see UNITS_PER_COIN) */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        /** address, with its encoding and its id in the global AddressRegistry, as last looked up */
+        private AddressId addressId;
+
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** @return a copy of the output, keeping its address id */
+        Output copy() {
+            Output copy = new Output(value, address);
+            copy.addressId = addressId;
+            return copy;
+        }
+
+        /**
+         * @return the id of address in the global AddressRegistry, registering it, or -1 if address
+         *         is null; only for pools storing ids, which hold the output
+         */
+        int addressId() {
+            if (address == null)
+                return -1;
+            AddressId cached = addressId;
+            if (cached == null || cached.key != address || cached.id < 0) {
+                AddressRegistry registry = AddressRegistry.global();
+                int id = registry.register(address);
+                cached = new AddressId(address, id, registry.getEncoded(id));
+                addressId = cached;
+            }
+            return cached.id;
+        }
+
+        /**
+         * @return the X.509 encoding of address, shared and not to be modified, or null if address
+         *         is null. The address is not registered: the encoding of a registered key is
+         *         shared, and that of another one is made once per output.
+         */
+        byte[] encodedAddress() {
+            if (address == null)
+                return null;
+            AddressId cached = addressId;
+            if (cached == null || cached.key != address) {
+                AddressRegistry registry = AddressRegistry.global();
+                int id = registry.idOf(address);
+                cached = new AddressId(address, id, id >= 0 ? registry.getEncoded(id) : address.getEncoded());
+                addressId = cached;
+            }
+            return cached.encoded;
+        }
+    }
+
+    /** A public key, its encoding and its id, or -1 if it was not registered, published together through final fields */
+    private static class AddressId {
+        final PublicKey key;
+        final int id;
+        final byte[] encoded;
+
+        AddressId(PublicKey key, int id, byte[] encoded) {
+            this.key = key;
+            this.id = id;
+            this.encoded = encoded;
+        }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /** true if output values are serialized as double numbers of coins, as before fixed-point values */
+    private boolean legacyEncoding;
+    /** cached serialization of the outputs, and the output values and addresses it was made from */
+    private byte[] outputsData;
+    private long[] encodedValues;
+    private PublicKey[] encodedAddresses;
+    private boolean encodedLegacy;
+    /** values computed once by seal() */
+    private volatile boolean sealed;
+    private byte[] rawTx;
+    private byte[][] rawDataToSign;
+    private byte[][] signDataDigests;
+    private long totalOutputValue;
+    private boolean totalOutputValueOverflows;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -54,26 +146,192 @@ public class Transaction {
     }
 
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        hash = tx.hash == null ? null : tx.hash.clone();
+        legacyEncoding = tx.legacyEncoding;
+        if (tx.sealed) {
+            // the copy may be changed, so it must not share inputs and outputs with the sealed tx
+            inputs = copyInputs(tx.inputs);
+            outputs = copyOutputs(tx.outputs);
+        } else {
+            inputs = new ArrayList<Input>(tx.inputs);
+            outputs = new ArrayList<Output>(tx.outputs);
+        }
+    }
+
+    /**
+     * Seals the transaction: computes its hash, the data to sign and its SHA-256 digest for every
+     * input, and its total output value, and makes it immutable. Sealing a sealed transaction
+     * does nothing.
+     */
+    public synchronized void seal() {
+        if (sealed)
+            return;
+        inputs = new SealedList<Input>(copyInputs(inputs));
+        outputs = new SealedList<Output>(copyOutputs(outputs));
+        rawTx = getRawTx();
+        hash = sha256(rawTx);
+        rawDataToSign = new byte[inputs.size()][];
+        signDataDigests = new byte[inputs.size()][];
+        for (int i = 0; i < rawDataToSign.length; i++) {
+            rawDataToSign[i] = getRawDataToSign(i);
+            signDataDigests[i] = sha256(rawDataToSign[i]);
+        }
+        try {
+            totalOutputValue = sumOutputValues();
+        } catch (ArithmeticException e) {
+            totalOutputValueOverflows = true;
+        }
+        sealed = true;
+    }
+
+    /** @return true if the transaction is sealed */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /** @throws IllegalStateException if the transaction is sealed */
+    private void checkNotSealed() {
+        if (sealed)
+            throw new IllegalStateException("transaction is sealed");
+    }
+
+    /**
+     * @return the sum of the output values, in base units
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public long getTotalOutputValue() {
+        if (!sealed)
+            return sumOutputValues();
+        if (totalOutputValueOverflows)
+            throw new ArithmeticException("long overflow");
+        return totalOutputValue;
+    }
+
+    private long sumOutputValues() {
+        long sum = 0;
+        for (Output op : outputs) {
+            sum = Math.addExact(sum, op.value);
+        }
+        return sum;
+    }
+
+    /** @return the SHA-256 digest of getRawDataToSign(index) */
+    public byte[] getSignDataDigest(int index) {
+        return signDataDigest(index).clone();
+    }
+
+    /**
+     * @return the data to sign of input {@code index}, shared and not to be modified if the
+     *         transaction is sealed
+     */
+    byte[] rawDataToSign(int index) {
+        return sealed ? rawDataToSign[index] : getRawDataToSign(index);
+    }
+
+    /** @return the digest of input {@code index}, shared and not to be modified if the transaction is sealed */
+    byte[] signDataDigest(int index) {
+        return sealed ? signDataDigests[index] : sha256(getRawDataToSign(index));
+    }
+
+    /** @return the SHA-256 digest of {@code data} */
+    static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private static Input copy(Input in) {
+        Input copy = new Input(in.prevTxHash, in.outputIndex);
+        copy.addSignature(in.signature);
+        return copy;
+    }
+
+    private static ArrayList<Input> copyInputs(List<Input> inputs) {
+        ArrayList<Input> copies = new ArrayList<Input>(inputs.size());
+        for (Input in : inputs) {
+            copies.add(copy(in));
+        }
+        return copies;
+    }
+
+    private static ArrayList<Output> copyOutputs(List<Output> outputs) {
+        ArrayList<Output> copies = new ArrayList<Output>(outputs.size());
+        for (Output op : outputs) {
+            copies.add(op.copy());
+        }
+        return copies;
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkNotSealed();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
-    public void addOutput(double value, PublicKey address) {
-        Output op = new Output(value, address);
+    /**
+     * Adds an output paying {@code value} base units to {@code address}, which is replaced by the
+     * equal key registered in the global AddressRegistry if there is one, so that outputs paying a
+     * key held in a pool share one instance of it. The key is not registered.
+     */
+    public void addOutput(long value, PublicKey address) {
+        checkNotSealed();
+        Output op = new Output(value, AddressRegistry.global().canonical(address));
         outputs.add(op);
     }
 
+    /**
+     * Adds an output of {@code coins} coins, converted exactly to base units, as needed to rebuild a
+     * transaction of the double-valued format.
+     *
+     * @throws ArithmeticException if {@code coins} is not a whole number of base units
+     */
+    public void addOutputCoins(double coins, PublicKey address) {
+        addOutput(coinsToUnits(coins), address);
+    }
+
+    /**
+     * @return the number of base units in {@code coins} coins
+     * @throws ArithmeticException if {@code coins} is not a whole number of base units in range
+     */
+    public static long coinsToUnits(double coins) {
+        double units = Math.rint(coins * UNITS_PER_COIN);
+        if (Double.isNaN(units) || Math.abs(units) >= 0x1p63 || units / UNITS_PER_COIN != coins) {
+            throw new ArithmeticException(coins + " is not a whole number of base units");
+        }
+        return (long) units;
+    }
+
+    /** @return the number of coins in {@code units} base units, rounded to the nearest double */
+    public static double unitsToCoins(long units) {
+        return units / (double) UNITS_PER_COIN;
+    }
+
+    /**
+     * Chooses how output values are serialized in the data to sign and the raw transaction: as
+     * compact variable-length integers of base units (the default), or, if {@code legacy}, as the
+     * 8-byte double numbers of coins of the double-valued format. A transaction of that format
+     * rebuilt with addOutputCoins and legacy encoding has the same hash and the same data to sign
+     * as originally, so its signatures still verify and the UTXOs it created keep their keys.
+     */
+    public void setLegacyEncoding(boolean legacy) {
+        checkNotSealed();
+        legacyEncoding = legacy;
+    }
+
+    /** @return true if output values are serialized as double numbers of coins */
+    public boolean isLegacyEncoding() {
+        return legacyEncoding;
+    }
+
     public void removeInput(int index) {
+        checkNotSealed();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        checkNotSealed();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
@@ -86,79 +344,114 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
+        if (sealed)
+            return rawDataToSign[index].clone();
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        byte[] outputsData = getOutputsData();
+        int hashLength = prevTxHash == null ? 0 : prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + Integer.BYTES + outputsData.length);
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(outputsData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
+        checkNotSealed();
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        if (sealed)
+            return rawTx.clone();
+        byte[] outputsData = getOutputsData();
+        int size = outputsData.length;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            size += Integer.BYTES;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
+        }
+        rawTx.put(outputsData);
+        return rawTx.array();
+    }
 
+    /**
+     * @return the serialized outputs (value, then encoded address, of each output), which end both
+     *         the data to sign of every input and the raw transaction. The encoding is cached and
+     *         reused for as long as the value and address of every output stay the same.
+     */
+    private synchronized byte[] getOutputsData() {
+        int n = outputs.size();
+        boolean cached = outputsData != null && encodedValues.length == n && encodedLegacy == legacyEncoding;
+        for (int i = 0; cached && i < n; i++) {
+            Output op = outputs.get(i);
+            cached = op.value == encodedValues[i] && op.address == encodedAddresses[i];
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        if (cached)
+            return outputsData;
+
+        long[] values = new long[n];
+        PublicKey[] addresses = new PublicKey[n];
+        byte[][] addressBytes = new byte[n][];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            Output op = outputs.get(i);
+            values[i] = op.value;
+            addresses[i] = op.address;
+            addressBytes[i] = op.encodedAddress();
+            size += (legacyEncoding ? Double.BYTES : varLongSize(values[i])) + addressBytes[i].length;
+        }
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int i = 0; i < n; i++) {
+            if (legacyEncoding)
+                data.putDouble(unitsToCoins(values[i]));
+            else
+                putVarLong(data, values[i]);
+            data.put(addressBytes[i]);
+        }
+        outputsData = data.array();
+        encodedValues = values;
+        encodedAddresses = addresses;
+        encodedLegacy = legacyEncoding;
+        return outputsData;
+    }
+
+    /** @return the number of bytes of the zigzag LEB128 encoding of {@code v} */
+    static int varLongSize(long v) {
+        long zigzag = (v << 1) ^ (v >> 63);
+        int size = 1;
+        while ((zigzag >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /** Writes {@code v} zigzag-encoded, 7 bits per byte with the high bit set on all but the last byte */
+    static void putVarLong(ByteBuffer buffer, long v) {
+        long zigzag = (v << 1) ^ (v >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
     }
 
     public void finalize() {
+        if (sealed)
+            return;   // the hash was computed by seal()
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update(getRawTx());
@@ -169,35 +462,69 @@ public class Transaction {
     }
 
     public void setHash(byte[] h) {
+        checkNotSealed();
         hash = h;
     }
 
+    /** @return the hash, a copy of it if the transaction is sealed */
     public byte[] getHash() {
-        return hash;
+        return sealed ? hash.clone() : hash;
     }
 
+    /** @return the inputs; if the transaction is sealed, copies of them, in a list that can not be changed */
     public ArrayList<Input> getInputs() {
-        return inputs;
+        return sealed ? new SealedList<Input>(copyInputs(inputs)) : inputs;
     }
 
+    /** @return the outputs; if the transaction is sealed, copies of them, in a list that can not be changed */
     public ArrayList<Output> getOutputs() {
-        return outputs;
+        return sealed ? new SealedList<Output>(copyOutputs(outputs)) : outputs;
     }
 
+    /** @return input {@code index}, a copy of it if the transaction is sealed, or null if there is none */
     public Input getInput(int index) {
         if (index < inputs.size()) {
-            return inputs.get(index);
+            return sealed ? copy(inputs.get(index)) : inputs.get(index);
         }
         return null;
     }
 
+    /** @return output {@code index}, a copy of it if the transaction is sealed, or null if there is none */
     public Output getOutput(int index) {
         if (index < outputs.size()) {
-            return outputs.get(index);
+            return sealed ? outputs.get(index).copy() : outputs.get(index);
         }
         return null;
     }
 
+    /** @return the hash, shared and not to be modified if the transaction is sealed */
+    byte[] hash() {
+        return hash;
+    }
+
+    /** @return the inputs, shared and not to be modified if the transaction is sealed */
+    List<Input> inputs() {
+        return inputs;
+    }
+
+    /** @return the outputs, shared and not to be modified if the transaction is sealed */
+    List<Output> outputs() {
+        return outputs;
+    }
+
+    /** @return input {@code index}, shared and not to be modified if the transaction is sealed */
+    Input input(int index) {
+        return inputs.get(index);
+    }
+
+    /**
+     * @return output {@code index}, shared and not to be modified if the transaction is sealed, or
+     *         null if there is no such output, as getOutput
+     */
+    Output output(int index) {
+        return index < outputs.size() ? outputs.get(index) : null;
+    }
+
     public int numInputs() {
         return inputs.size();
     }
@@ -205,4 +532,93 @@ public class Transaction {
     public int numOutputs() {
         return outputs.size();
     }
+
+    /** The input or output list of a sealed transaction, every change of which throws */
+    private static class SealedList<E> extends ArrayList<E> {
+
+        private static final long serialVersionUID = 1L;
+
+        SealedList(Collection<E> elements) {
+            super(elements);
+        }
+
+        private static UnsupportedOperationException sealed() {
+            return new UnsupportedOperationException("transaction is sealed");
+        }
+
+        @Override
+        public E set(int index, E element) {
+            throw sealed();
+        }
+
+        @Override
+        public boolean add(E e) {
+            throw sealed();
+        }
+
+        @Override
+        public void add(int index, E element) {
+            throw sealed();
+        }
+
+        @Override
+        public E remove(int index) {
+            throw sealed();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            throw sealed();
+        }
+
+        @Override
+        public void clear() {
+            throw sealed();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends E> c) {
+            throw sealed();
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends E> c) {
+            throw sealed();
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            throw sealed();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            throw sealed();
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            throw sealed();
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super E> filter) {
+            throw sealed();
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<E> operator) {
+            throw sealed();
+        }
+
+        @Override
+        public void sort(Comparator<? super E> c) {
+            throw sealed();
+        }
+
+        @Override
+        public List<E> subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+        }
+    }
 }
@@ -0,0 +1,381 @@
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Builds signed, sealed payments from the UTXOs of the payer in a pool, so that clients need not
+ * pick inputs, sign and finalize transactions by hand.
+ *
+ * The UTXOs of every payer are taken from the owner index of the pool and kept sorted by value,
+ * largest first, until they change, which is told in O(1) from the number and balance of the
+ * payer's UTXOs in the index, so that changes to other keys do not cost a payer a sort. A change
+ * keeping both, such as spending a UTXO and receiving another of the same value, is found when a
+ * selected UTXO turns out to have left the pool, and a payment is only found short of funds
+ * after the payer's UTXOs were read again. Inputs are selected by branch and bound, which looks for
+ * a set of UTXOs covering the payment and fee exactly, or with an excess of at most the change
+ * tolerance, left to the fee, so that no change output is needed; if there is none, the largest
+ * UTXOs are taken until they cover the payment, and the rest comes back to the payer in a change
+ * output. The inputs are signed in parallel on the executor, if there is one.
+ *
+ * Selected UTXOs are reserved, so that builders running in several threads never spend one UTXO
+ * twice; payments of different payers do not contend. A reservation lasts until the UTXO leaves
+ * the pool, or until the transaction is released because it will not be submitted. With a
+ * ConcurrentUTXOPool, payments may be built while transactions are accepted; other pools must not
+ * be changed meanwhile.
+ */
+public class TxBuilder {
+
+    /** How inputs are selected */
+    public enum Strategy {
+        /** an exact match by branch and bound if there is one, and otherwise largest first */
+        BRANCH_AND_BOUND,
+        /** the largest UTXOs until they cover the payment */
+        LARGEST_FIRST
+    }
+
+    /** maximum number of steps of one branch and bound search */
+    static final int MAX_TRIES = 100000;
+    /** number of times a selection is made again when another builder reserved one of its UTXOs */
+    static final int MAX_RESERVATION_RETRIES = 8;
+
+    private final UTXOPool pool;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<PublicKey, Coins> coins = new ConcurrentHashMap<PublicKey, Coins>();
+    private volatile Strategy strategy = Strategy.BRANCH_AND_BOUND;
+    private volatile long changeTolerance;
+
+    /** A UTXO and its output */
+    private static class Coin {
+        final UTXO utxo;
+        final Transaction.Output output;
+
+        Coin(UTXO utxo, Transaction.Output output) {
+            this.utxo = utxo;
+            this.output = output;
+        }
+    }
+
+    /**
+     * The UTXOs of one payer, sorted by value, as of a modification count of the pool at which the
+     * payer had {@code count} UTXOs summing to {@code balance}
+     */
+    private static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new Coin[0], -1, 0, 0);
+
+        final Coin[] sorted;
+        final long modCount;
+        final int count;
+        final long balance;
+
+        Snapshot(Coin[] sorted, long modCount, int count, long balance) {
+            this.sorted = sorted;
+            this.modCount = modCount;
+            this.count = count;
+            this.balance = balance;
+        }
+    }
+
+    /** The UTXOs of one payer and its reservations */
+    private static class Coins {
+        volatile Snapshot snapshot = Snapshot.EMPTY;
+        final Set<UTXO> reserved = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Creates a builder spending UTXOs of {@code pool}, which signs the inputs on
+     * {@code executor}, or inline if it is null
+     */
+    public TxBuilder(UTXOPool pool, ExecutorService executor) {
+        this.pool = pool;
+        this.executor = executor;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Lets branch and bound accept a selection exceeding the payment and fee by up to
+     * {@code units} base units, which go to the fee, instead of adding a change output; 0 by default
+     */
+    public void setChangeTolerance(long units) {
+        if (units < 0) {
+            throw new IllegalArgumentException("negative change tolerance: " + units);
+        }
+        this.changeTolerance = units;
+    }
+
+    /**
+     * Builds a transaction paying {@code value} base units to {@code to} and {@code fee} to the
+     * validators, spending UTXOs of {@code from}. The transaction is signed and sealed, and its
+     * inputs stay reserved.
+     *
+     * @return the transaction, or null if the UTXOs of {@code from} that are not reserved do not
+     *         cover the payment and fee
+     * @throws IllegalArgumentException if {@code value} is not positive or {@code fee} is negative
+     */
+    public Transaction pay(KeyPair from, PublicKey to, long value, long fee) {
+        if (value <= 0 || fee < 0) {
+            throw new IllegalArgumentException("invalid payment of " + value + " with a fee of " + fee);
+        }
+        long target = Math.addExact(value, fee);
+        Coins owned = coins.computeIfAbsent(from.getPublic(), k -> new Coins());
+        boolean reread = false;   // whether the UTXOs must be read from the pool whatever the index says
+        for (int attempt = 0; attempt <= MAX_RESERVATION_RETRIES; attempt++) {
+            Coin[] available = unreserved(owned, sync(owned, from.getPublic(), reread));
+            int[] selected = strategy == Strategy.BRANCH_AND_BOUND ? branchAndBound(available, target) : null;
+            boolean exact = selected != null;
+            if (selected == null) {
+                selected = largestFirst(available, target);
+                if (selected == null) {
+                    if (reread) {
+                        return null;
+                    }
+                    reread = true;   // the UTXOs kept may be out of date; read them before giving up
+                    continue;
+                }
+            }
+            Coin[] inputs = new Coin[selected.length];
+            for (int i = 0; i < selected.length; i++) {
+                inputs[i] = available[selected[i]];
+            }
+            if (reserve(owned, inputs)) {
+                long change = exact ? 0 : sum(inputs) - target;
+                return build(from.getPrivate(), inputs, to, value, from.getPublic(), change);
+            }
+            // another builder reserved an input first, or one left the pool, which the next
+            // selection must not pick again
+            reread = !inPool(inputs);
+        }
+        return null;
+    }
+
+    /**
+     * Drops the reservations of the inputs of {@code tx}, a transaction built by this builder that
+     * will not be submitted, so that they can be selected again
+     */
+    public void release(Transaction tx) {
+        for (Transaction.Input input : tx.inputs()) {
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            Transaction.Output output = pool.getTxOutput(utxo);
+            Coins owned = output == null || output.address == null ? null : coins.get(output.address);
+            if (owned != null) {
+                owned.reserved.remove(utxo);
+            }
+        }
+    }
+
+    /**
+     * @return the UTXOs of {@code owner}, sorted again from the owner index if the pool changed and
+     *         their number or balance differs, or if {@code reread}; reservations of UTXOs that
+     *         left the pool are dropped then
+     */
+    private Snapshot sync(Coins owned, PublicKey owner, boolean reread) {
+        Snapshot snapshot = owned.snapshot;
+        // read before the UTXOs, so that a change made meanwhile is seen by the next sync
+        long modCount = pool.modCount();
+        if (!reread && snapshot.modCount == modCount) {
+            return snapshot;
+        }
+        synchronized (owned) {
+            snapshot = owned.snapshot;
+            int count = pool.getOwnedCount(owner);
+            long balance = pool.getBalance(owner);
+            if (!reread && snapshot.count == count && snapshot.balance == balance) {
+                // the pool changed, but most likely not for this owner
+                snapshot = new Snapshot(snapshot.sorted, modCount, count, balance);
+            } else {
+                List<Coin> list = new ArrayList<Coin>(count);
+                pool.forEachOwned(owner, (utxo, output) -> list.add(new Coin(utxo, output)));
+                Coin[] sorted = list.toArray(new Coin[list.size()]);
+                Arrays.sort(sorted, (a, b) -> Long.compare(b.output.value, a.output.value));
+                owned.reserved.removeIf(utxo -> !pool.contains(utxo));
+                snapshot = new Snapshot(sorted, modCount, count, balance);
+            }
+            owned.snapshot = snapshot;
+            return snapshot;
+        }
+    }
+
+    /** @return the UTXOs of {@code snapshot} that are not reserved in {@code owned}, largest first */
+    private static Coin[] unreserved(Coins owned, Snapshot snapshot) {
+        Coin[] sorted = snapshot.sorted;
+        if (owned.reserved.isEmpty()) {
+            return sorted;
+        }
+        List<Coin> available = new ArrayList<Coin>(sorted.length);
+        for (Coin coin : sorted) {
+            if (!owned.reserved.contains(coin.utxo)) {
+                available.add(coin);
+            }
+        }
+        return available.toArray(new Coin[available.size()]);
+    }
+
+    /** Reserves all of {@code inputs}, or none of them if another builder reserved one first */
+    private boolean reserve(Coins owned, Coin[] inputs) {
+        for (int i = 0; i < inputs.length; i++) {
+            // a UTXO spent since the pool was last read cannot be reserved either
+            if (!pool.contains(inputs[i].utxo) || !owned.reserved.add(inputs[i].utxo)) {
+                for (int j = 0; j < i; j++) {
+                    owned.reserved.remove(inputs[j].utxo);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the indices in {@code coins}, sorted largest first, of a set of coins summing to
+     *         between {@code target} and target plus the change tolerance, the one with the
+     *         smallest excess found within MAX_TRIES steps, or null if none was found. The search is
+     *         depth-first, including the largest coins first, and prunes branches that exceed the
+     *         bound or cannot reach the target with the coins left.
+     */
+    private int[] branchAndBound(Coin[] coins, long target) {
+        int n = coins.length;
+        long upper = TxHandler.saturatedAdd(target, changeTolerance);
+        long available;   // the sum of the coins from the current one on
+        try {
+            available = sum(coins);
+        } catch (ArithmeticException e) {
+            return null;   // sums of such coins overflow; largest first needs no sums beyond the target
+        }
+        int[] included = new int[n];
+        int depth = 0;
+        long sum = 0;
+        int[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        int i = 0;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            boolean backtrack;
+            if (sum > upper || sum + available < target) {
+                backtrack = true;
+            } else if (sum >= target) {
+                if (sum - target < bestExcess) {
+                    bestExcess = sum - target;
+                    best = Arrays.copyOf(included, depth);
+                }
+                if (bestExcess == 0) {
+                    break;
+                }
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+            if (backtrack) {
+                if (depth == 0) {
+                    break;
+                }
+                // exclude the last coin included, giving back the coins skipped since
+                int last = included[--depth];
+                for (int k = i - 1; k > last; k--) {
+                    available += coins[k].output.value;
+                }
+                sum -= coins[last].output.value;
+                i = last + 1;
+            } else {
+                available -= coins[i].output.value;
+                sum += coins[i].output.value;
+                included[depth++] = i++;
+            }
+        }
+        return best;
+    }
+
+    /** @return true if all of {@code inputs} are in the pool */
+    private boolean inPool(Coin[] inputs) {
+        for (Coin coin : inputs) {
+            if (!pool.contains(coin.utxo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the indices of the largest coins of {@code coins} covering {@code target}, or null */
+    private static int[] largestFirst(Coin[] coins, long target) {
+        long sum = 0;
+        for (int i = 0; i < coins.length; i++) {
+            sum = TxHandler.saturatedAdd(sum, coins[i].output.value);
+            if (sum >= target) {
+                int[] selected = new int[i + 1];
+                for (int k = 0; k <= i; k++) {
+                    selected[k] = k;
+                }
+                return selected;
+            }
+        }
+        return null;
+    }
+
+    private static long sum(Coin[] coins) {
+        long sum = 0;
+        for (Coin coin : coins) {
+            sum = Math.addExact(sum, coin.output.value);
+        }
+        return sum;
+    }
+
+    /** @return the sealed transaction spending {@code inputs}, paying {@code value} to {@code to} and {@code change} back */
+    private Transaction build(PrivateKey key, Coin[] inputs, PublicKey to, long value, PublicKey payer, long change) {
+        Transaction tx = new Transaction();
+        for (Coin coin : inputs) {
+            tx.addInput(coin.utxo.getTxHash(), coin.utxo.getIndex());
+        }
+        tx.addOutput(value, to);
+        if (change > 0) {
+            tx.addOutput(change, payer);
+        }
+        byte[][] messages = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            messages[i] = tx.getRawDataToSign(i);
+        }
+        byte[][] signatures = sign(key, messages);
+        for (int i = 0; i < inputs.length; i++) {
+            tx.addSignature(signatures[i], i);
+        }
+        tx.seal();
+        return tx;
+    }
+
+    /** @return the signatures of {@code messages} under {@code key}, made in parallel on the executor */
+    private byte[][] sign(PrivateKey key, byte[][] messages) {
+        byte[][] signatures = new byte[messages.length][];
+        if (executor == null || messages.length == 1) {
+            for (int i = 0; i < messages.length; i++) {
+                signatures[i] = Crypto.sign(key, messages[i]);
+            }
+            return signatures;
+        }
+        List<Callable<byte[]>> jobs = new ArrayList<Callable<byte[]>>(messages.length);
+        for (byte[] message : messages) {
+            jobs.add(() -> Crypto.sign(key, message));
+        }
+        try {
+            List<Future<byte[]>> results = executor.invokeAll(jobs);
+            for (int i = 0; i < signatures.length; i++) {
+                signatures[i] = results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while signing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return signatures;
+    }
+}
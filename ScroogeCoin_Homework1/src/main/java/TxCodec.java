@@ -0,0 +1,469 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact, parseable binary format for transactions. Unlike getRawTx(), which is only the input
+ * of the hash, every variable-length field is length-prefixed, so transactions can be read back
+ * from disk or the network, one after the other from the same buffer. An encoded transaction is:
+ *
+ * <pre>
+ * byte     version ({@value #VERSION})
+ * byte     flags (bit 0: legacy encoding of output values)
+ * bytes    hash
+ * varint   number of inputs, then for each: bytes prevTxHash, varint outputIndex, bytes signature
+ * varint   number of addresses, then for each: the X.509 encoding of a public key, as bytes
+ * varint   number of outputs, then for each: zigzag varint value, varint address
+ * </pre>
+ *
+ * where varints are unsigned LEB128, "bytes" is a varint length plus one (0 for null) followed by
+ * the bytes, and an output address is an index into the address table plus one (0 for null). Each
+ * distinct public key is written once per transaction however many outputs pay it. Keys held in a
+ * pool are encoded and decoded through the global AddressRegistry, so each is only converted once;
+ * other keys are not registered, as an untrusted transaction must not grow the registry.
+ *
+ * <p>A {@link View} reads the fields of an encoded transaction in place, so a transaction can be
+ * inspected without materializing its inputs, outputs and public keys.
+ */
+public class TxCodec {
+
+    /** the format version written as the first byte of every encoded transaction */
+    public static final int VERSION = 1;
+
+    /** flag set if the output values of the transaction use the legacy double encoding */
+    private static final int LEGACY_ENCODING = 1;
+
+    private TxCodec() {
+    }
+
+    /** @return {@code tx} encoded */
+    public static byte[] encode(Transaction tx) {
+        Encoder encoder = new Encoder(tx);
+        ByteBuffer out = ByteBuffer.allocate(encoder.size());
+        encoder.writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes {@code tx} encoded at the position of {@code out} and advances it past the encoding.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} has less room than encodedSize(tx)
+     */
+    public static void encode(Transaction tx, ByteBuffer out) {
+        new Encoder(tx).writeTo(out);
+    }
+
+    /** @return the number of bytes of the encoding of {@code tx} */
+    public static int encodedSize(Transaction tx) {
+        return new Encoder(tx).size();
+    }
+
+    /**
+     * Decodes the transaction at the position of {@code in} and advances it past the encoding. The
+     * hash is computed again from the decoded contents, which the signatures do not cover, so a
+     * transaction can not claim the hash, and with it the outputs, of another.
+     *
+     * @throws IllegalArgumentException if the bytes are not an encoded transaction, or the hash
+     *         written does not match its contents
+     */
+    public static Transaction decode(ByteBuffer in) {
+        return view(in).toTransaction();
+    }
+
+    /** @return the transaction encoded in {@code data} */
+    public static Transaction decode(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        Transaction tx = decode(in);
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("malformed transaction: " + in.remaining() + " trailing bytes");
+        }
+        return tx;
+    }
+
+    /**
+     * @return a view of the transaction at the position of {@code in}, which is advanced past the
+     *         encoding. The view shares the bytes of {@code in}, which must not change while the
+     *         view is in use.
+     * @throws IllegalArgumentException if the bytes are not an encoded transaction
+     */
+    public static View view(ByteBuffer in) {
+        View view = new View(in.slice());
+        in.position(in.position() + view.size());
+        return view;
+    }
+
+    /** Serializes one transaction, with its address table built once for sizing and writing */
+    private static class Encoder {
+        private final Transaction tx;
+        private final List<byte[]> addresses = new ArrayList<byte[]>();
+        private final int[] addressOf;
+
+        Encoder(Transaction tx) {
+            this.tx = tx;
+            // table position of each encoding seen
+            HashMap<ByteBuffer, Integer> index = new HashMap<ByteBuffer, Integer>();
+            addressOf = new int[tx.numOutputs()];
+            for (int i = 0; i < addressOf.length; i++) {
+                byte[] address = tx.output(i).encodedAddress();
+                if (address == null) {
+                    continue;
+                }
+                Integer k = index.get(ByteBuffer.wrap(address));
+                if (k == null) {
+                    k = addresses.size();
+                    index.put(ByteBuffer.wrap(address), k);
+                    addresses.add(address);
+                }
+                addressOf[i] = k + 1;
+            }
+        }
+
+        int size() {
+            int size = 2 + bytesSize(tx.hash()) + varIntSize(tx.numInputs());
+            for (Transaction.Input in : tx.inputs()) {
+                size += bytesSize(in.prevTxHash) + varIntSize(in.outputIndex) + bytesSize(in.signature);
+            }
+            size += varIntSize(addresses.size());
+            for (byte[] address : addresses) {
+                size += bytesSize(address);
+            }
+            size += varIntSize(tx.numOutputs());
+            for (int i = 0; i < addressOf.length; i++) {
+                size += Transaction.varLongSize(tx.output(i).value) + varIntSize(addressOf[i]);
+            }
+            return size;
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.put((byte) VERSION);
+            out.put((byte) (tx.isLegacyEncoding() ? LEGACY_ENCODING : 0));
+            putBytes(out, tx.hash());
+            putVarInt(out, tx.numInputs());
+            for (Transaction.Input in : tx.inputs()) {
+                putBytes(out, in.prevTxHash);
+                putVarInt(out, in.outputIndex);
+                putBytes(out, in.signature);
+            }
+            putVarInt(out, addresses.size());
+            for (byte[] address : addresses) {
+                putBytes(out, address);
+            }
+            putVarInt(out, tx.numOutputs());
+            for (int i = 0; i < addressOf.length; i++) {
+                Transaction.putVarLong(out, tx.output(i).value);
+                putVarInt(out, addressOf[i]);
+            }
+        }
+    }
+
+    /**
+     * A read-only view of an encoded transaction. Constructing it walks the encoding once to
+     * check it and record where every input, address and output starts; the accessors then read
+     * the fields from the underlying bytes, and byte fields are returned as read-only slices of
+     * them. Public keys are only decoded when asked for, once per address table entry.
+     */
+    public static final class View {
+        private final ByteBuffer data;
+        private final boolean legacyEncoding;
+        private final int hashOffset;
+        private final int[] inputOffsets;
+        private final int[] addressOffsets;
+        private final int[] outputOffsets;
+        private final int size;
+        private PublicKey[] keys;
+
+        private View(ByteBuffer data) {
+            this.data = data.asReadOnlyBuffer();
+            ByteBuffer in = data.duplicate();
+            try {
+                int version = in.get() & 0xFF;
+                if (version != VERSION) {
+                    throw new IllegalArgumentException("unsupported transaction version " + version);
+                }
+                int flags = in.get() & 0xFF;
+                if ((flags & ~LEGACY_ENCODING) != 0) {
+                    throw new IllegalArgumentException("malformed transaction: unknown flags " + flags);
+                }
+                legacyEncoding = (flags & LEGACY_ENCODING) != 0;
+                hashOffset = in.position();
+                skipBytes(in);
+
+                inputOffsets = new int[getCount(in)];
+                for (int i = 0; i < inputOffsets.length; i++) {
+                    inputOffsets[i] = in.position();
+                    skipBytes(in);
+                    getVarInt(in);
+                    skipBytes(in);
+                }
+                addressOffsets = new int[getCount(in)];
+                for (int i = 0; i < addressOffsets.length; i++) {
+                    addressOffsets[i] = in.position();
+                    if (skipBytes(in) < 0) {
+                        throw new IllegalArgumentException("malformed transaction: null address");
+                    }
+                }
+                outputOffsets = new int[getCount(in)];
+                for (int i = 0; i < outputOffsets.length; i++) {
+                    outputOffsets[i] = in.position();
+                    getVarLong(in);
+                    int address = getVarInt(in);
+                    if (address < 0 || address > addressOffsets.length) {
+                        throw new IllegalArgumentException("malformed transaction: address out of range");
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("malformed transaction: truncated");
+            }
+            size = in.position();
+        }
+
+        /** @return the number of bytes of the encoding */
+        public int size() {
+            return size;
+        }
+
+        /** @return the bytes of the encoding, as a read-only buffer */
+        public ByteBuffer getEncoded() {
+            return slice(0, size);
+        }
+
+        public boolean isLegacyEncoding() {
+            return legacyEncoding;
+        }
+
+        /**
+         * @return the hash of the transaction as written, or null if it had none. It is not
+         *         checked against the contents until the transaction is materialized.
+         */
+        public ByteBuffer getHash() {
+            return getBytes(hashOffset);
+        }
+
+        public int numInputs() {
+            return inputOffsets.length;
+        }
+
+        /** @return the hash of the transaction whose output the index-th input uses */
+        public ByteBuffer getPrevTxHash(int index) {
+            return getBytes(inputOffsets[index]);
+        }
+
+        /** @return the index of the output the index-th input uses */
+        public int getOutputIndex(int index) {
+            ByteBuffer in = at(inputOffsets[index]);
+            skipBytes(in);
+            return getVarInt(in);
+        }
+
+        /** @return the signature of the index-th input, or null if it has none */
+        public ByteBuffer getSignature(int index) {
+            ByteBuffer in = at(inputOffsets[index]);
+            skipBytes(in);
+            getVarInt(in);
+            return getBytes(in.position());
+        }
+
+        public int numOutputs() {
+            return outputOffsets.length;
+        }
+
+        /** @return the value of the index-th output, in base units */
+        public long getValue(int index) {
+            return getVarLong(at(outputOffsets[index]));
+        }
+
+        /**
+         * @return the position in the address table of the address of the index-th output, or -1
+         *         if it has none. Outputs paying the same public key have the same position.
+         */
+        public int getAddressIndex(int index) {
+            ByteBuffer in = at(outputOffsets[index]);
+            getVarLong(in);
+            return getVarInt(in) - 1;
+        }
+
+        /** @return the number of distinct public keys the outputs pay */
+        public int numAddresses() {
+            return addressOffsets.length;
+        }
+
+        /** @return the X.509 encoding of the k-th public key of the address table */
+        public ByteBuffer getAddressBytes(int k) {
+            return getBytes(addressOffsets[k]);
+        }
+
+        /**
+         * @return the address of the index-th output, or null if it has none
+         * @throws IllegalArgumentException if its encoding is not a public key
+         */
+        public PublicKey getAddress(int index) {
+            int k = getAddressIndex(index);
+            return k < 0 ? null : getKey(k);
+        }
+
+        /** @return the index-th input, materialized */
+        public Transaction.Input getInput(int index) {
+            Transaction.Input input = new Transaction.Input(toArray(getPrevTxHash(index)), getOutputIndex(index));
+            input.addSignature(toArray(getSignature(index)));
+            return input;
+        }
+
+        /** @return the index-th output, materialized */
+        public Transaction.Output getOutput(int index) {
+            return new Transaction.Output(getValue(index), getAddress(index));
+        }
+
+        /**
+         * @return the whole transaction, materialized, with its hash computed from its contents,
+         *         or none if it had none
+         * @throws IllegalArgumentException if an address is not a public key, or the hash written
+         *         does not match the contents
+         */
+        public Transaction toTransaction() {
+            Transaction tx = new Transaction();
+            tx.setLegacyEncoding(legacyEncoding);
+            for (int i = 0; i < inputOffsets.length; i++) {
+                tx.getInputs().add(getInput(i));
+            }
+            for (int i = 0; i < outputOffsets.length; i++) {
+                tx.getOutputs().add(getOutput(i));
+            }
+            ByteBuffer written = getHash();
+            if (written != null) {
+                tx.finalize();
+                if (!written.equals(ByteBuffer.wrap(tx.getHash()))) {
+                    throw new IllegalArgumentException("malformed transaction: hash does not match its contents");
+                }
+            }
+            return tx;
+        }
+
+        private synchronized PublicKey getKey(int k) {
+            if (keys == null) {
+                keys = new PublicKey[addressOffsets.length];
+            }
+            if (keys[k] == null) {
+                // a key held in a pool is shared; any other one is decoded, not registered
+                byte[] encoded = toArray(getAddressBytes(k));
+                PublicKey key = AddressRegistry.global().lookup(encoded);
+                if (key == null) {
+                    key = Crypto.decodePublicKey(encoded);
+                }
+                if (key == null) {
+                    throw new IllegalArgumentException("malformed transaction: address " + k + " is not a public key");
+                }
+                keys[k] = key;
+            }
+            return keys[k];
+        }
+
+        private ByteBuffer at(int offset) {
+            ByteBuffer in = data.duplicate();
+            in.position(offset);
+            return in;
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer in = at(offset);
+            in.limit(offset + length);
+            return in.slice();
+        }
+
+        /** @return the byte field at {@code offset}, or null if it is null */
+        private ByteBuffer getBytes(int offset) {
+            ByteBuffer in = at(offset);
+            int length = getVarInt(in) - 1;
+            return length < 0 ? null : slice(in.position(), length);
+        }
+    }
+
+    /** @return the remaining bytes of {@code buffer} as an array, or null if it is null */
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /** @return the number of bytes of the unsigned LEB128 encoding of {@code v} */
+    static int varIntSize(int v) {
+        int size = 1;
+        while ((v >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /** Writes {@code v} as an unsigned LEB128 varint */
+    static void putVarInt(ByteBuffer buffer, int v) {
+        while ((v & ~0x7F) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    /** @return the unsigned LEB128 varint at the position of {@code buffer} */
+    static int getVarInt(ByteBuffer buffer) {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("malformed transaction: varint too long");
+    }
+
+    /** @return the zigzag LEB128 varint, as written by Transaction.putVarLong, at the position of {@code buffer} */
+    static long getVarLong(ByteBuffer buffer) {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("malformed transaction: varint too long");
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        return bytes == null ? 1 : varIntSize(bytes.length + 1) + bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            putVarInt(buffer, 0);
+        } else {
+            putVarInt(buffer, bytes.length + 1);
+            buffer.put(bytes);
+        }
+    }
+
+    /** Skips the byte field at the position of {@code buffer}, and returns its length (-1 for null) */
+    private static int skipBytes(ByteBuffer buffer) {
+        int length = getVarInt(buffer) - 1;
+        if (length > buffer.remaining() || length < -1) {
+            throw new IllegalArgumentException("malformed transaction: field length " + length);
+        }
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+        return length;
+    }
+
+    /** @return a count of items, checked against the bytes left since every item takes one or more */
+    private static int getCount(ByteBuffer buffer) {
+        int count = getVarInt(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("malformed transaction: count " + count);
+        }
+        return count;
+    }
+}
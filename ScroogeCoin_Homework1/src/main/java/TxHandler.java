@@ -1,18 +1,47 @@
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.security.PublicKey;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 public class TxHandler {
     public UTXOPool uPool;
+    /** executor used by handleTxs to verify input signatures in parallel, or null to verify inline */
+    private ExecutorService executor;
+    /** cache of verified signatures consulted before calling Crypto, or null */
+    private SignatureCache signatureCache;
+    /** receiver of stage timings and decisions, or null, in which case nothing is timed */
+    private Listener listener;
+    /** log of the changes made to uPool since the last takeUndoLog, or null if they are not logged */
+    private volatile UndoLog undoLog;
+
     /** Creates a public ledger whose current UTXOPool (collection of unspent
-     * transaction outputs) is utxoPool. This should make a defensive copy of
-     * utxoPool by using the UTXOPool(UTXOPool uPool) constructor.
+     * transaction outputs) is utxoPool. This makes a defensive copy of utxoPool
+     * with UTXOPool.fork(), which keeps the backend of utxoPool and lets the
+     * caller commit the changes of the handled epochs back to utxoPool.
      */
 
     public TxHandler(UTXOPool uPool) {
-        this.uPool = new UTXOPool(uPool);
+        this.uPool = uPool.fork();
+    }
+
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool)} whose handleTxs verifies the
+     * signatures of all inputs of all proposed transactions concurrently on {@code executor}
+     * (e.g. a ForkJoinPool or a virtual-thread-per-task executor). The accepted transactions and
+     * the resulting UTXO pool are exactly the ones of the sequential mode.
+     */
+    public TxHandler(UTXOPool uPool, ExecutorService executor) {
+        this(uPool);
+        this.executor = executor;
     }
 
     /**
@@ -26,44 +55,172 @@ public class TxHandler {
      */
 
     public boolean isValidTx(Transaction tx) {
-        double inputSum = 0;     //the sum of values of all inputs in tx
-        double outputSum = 0;    //the sum of values of all outputs in tx
+        return checkTx(tx, null) == null;
+    }
+
+    /** The condition of isValidTx that a rejected transaction does not satisfy */
+    public enum Rejection {
+        /** (1) an output claimed by the transaction is not in the current UTXO pool */
+        NOT_IN_POOL,
+        /** (2) the signature on an input is not valid */
+        INVALID_SIGNATURE,
+        /** (3) a UTXO is claimed multiple times */
+        DOUBLE_CLAIM,
+        /** (4) an output value is not positive */
+        INVALID_OUTPUT_VALUE,
+        /** (5) the output values sum to more than the input values */
+        OUTPUTS_EXCEED_INPUTS,
+        /**
+         * not a condition of isValidTx: the epoch's latency budget ran out before the transaction
+         * was validated (see MaxFeeTxHandler); it may be proposed again
+         */
+        OUT_OF_BUDGET
+    }
+
+    /** The stages of transaction handling whose latency is reported to a {@link Listener} */
+    public enum Stage {
+        /** the pool lookups and the conditions (1), (3), (4) and (5) of one transaction */
+        LOOKUP,
+        /** the serialization of the data signed by one input, free for a sealed transaction */
+        SIGN_DATA,
+        /** the verification of the signature of one input, by Crypto or the signature cache */
+        SIGNATURE,
+        /** the application of one accepted transaction to the pool */
+        APPLY,
+        /** a whole call of handleTxs */
+        EPOCH
+    }
+
+    /**
+     * Receives the latency of every stage, the decision on every transaction handled by handleTxs
+     * or acceptTx, and the pool after every epoch. Stages of parallel handlers are reported from
+     * the executor threads, so implementations must be thread-safe and should be cheap.
+     */
+    public interface Listener {
+        default void onStage(Stage stage, long nanos) {
+        }
+
+        default void onAccepted(Transaction tx) {
+        }
+
+        default void onRejected(Transaction tx, Rejection reason) {
+        }
+
+        /** Called after each epoch with the number of proposed and accepted transactions */
+        default void onEpoch(int proposed, int accepted, UTXOPool pool) {
+        }
+    }
+
+    /**
+     * @return null if {@code tx} is valid, and otherwise the first condition of isValidTx that it
+     *         fails. The conditions that need no cryptography come first: (1) and (3) for the
+     *         inputs in order, then (4) and (5); the signatures (2) are only verified, in input
+     *         order, for a tx that satisfies all of them.
+     */
+    public Rejection checkTx(Transaction tx) {
+        return checkTx(tx, null);
+    }
+
+    /**
+     * Same as isValidTx(tx), but takes the signature checks of the inputs of {@code tx} from
+     * {@code preverified} (may be null) whenever they were made against the key of the output that
+     * is currently in the pool.
+     */
+    boolean isValidTx(Transaction tx, PreverifiedTx preverified) {
+        return checkTx(tx, preverified) == null;
+    }
+
+    /** Same as checkTx(tx), with signature checks taken from {@code preverified} as in isValidTx */
+    Rejection checkTx(Transaction tx, PreverifiedTx preverified) {
+        return checkTx(tx, preverified, new Transaction.Output[tx.numInputs()]);
+    }
+
+    /**
+     * Same as checkTx(tx, preverified), storing the outputs claimed by the inputs of {@code tx}
+     * in {@code correspondOutputs}, one per input
+     */
+    private Rejection checkTx(Transaction tx, PreverifiedTx preverified, Transaction.Output[] correspondOutputs) {
+        // conditions (1), (3), (4) and (5) need no cryptography, so they are checked first
+        long start = startTimer();
+        Rejection rejection = checkCheapConditions(tx, uPool::getTxOutput, correspondOutputs);
+        stopTimer(Stage.LOOKUP, start);
+        if (rejection != null) {
+            return rejection;
+        }
+
+        // Implementation of condition (2); once a signature checked in advance against the current
+        // key is known to be bad, the others need not be verified
+        if (preverified != null && preverified.hasFailedAgainst(correspondOutputs)) {
+            return Rejection.INVALID_SIGNATURE;
+        }
+        for (int index = 0; index < correspondOutputs.length; index++){
+            PublicKey pk = correspondOutputs[index].address;
+            Boolean flag1 = preverified != null && preverified.keys[index] == pk ? preverified.result(index) : null;
+            if (flag1 == null) {
+                flag1 = verifySignature(pk, tx, index);
+            }
+            if (!flag1) {return Rejection.INVALID_SIGNATURE;}
+        }
+
+        return null;  //if conditions (1)~(5) are satisfied, there is no reason to reject tx
+    }
+
+    /**
+     * @return the first of the conditions (1), (3), (4) and (5) of isValidTx that {@code tx} fails,
+     *         or null, where the output claimed by an input is the one {@code lookup} finds. The
+     *         claimed outputs are stored in {@code correspondOutputs}, one per input.
+     */
+    static Rejection checkCheapConditions(Transaction tx, Function<UTXO, Transaction.Output> lookup,
+                                          Transaction.Output[] correspondOutputs) {
+        long inputSum = 0;     //the sum of values of all inputs in tx, in base units
+        long outputSum;        //the sum of values of all outputs in tx, in base units
         Set<UTXO> claimedUTXOs = new HashSet<UTXO>(); // a set of claimed UTXOs, for implementation of (3)
 
-        ArrayList<Transaction.Input> inputs = tx.getInputs(); //obtain all inputs in tx
-        for (Transaction.Input input:inputs){
+        List<Transaction.Input> inputs = tx.inputs(); //obtain all inputs in tx
+        for (int index = 0; index < inputs.size(); index++){
+            Transaction.Input input = inputs.get(index);
             UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
 
             // Implementation of condition (1)
-            if (!uPool.contains(utxo)){ return false;}
-
-            // Implementation of condition (2)
-            Transaction.Output correspondOutput = uPool.getTxOutput(utxo);
-            PublicKey pk = correspondOutput.address;
-            int index=inputs.indexOf(input);
-            boolean flag1=Crypto.verifySignature(pk, tx.getRawDataToSign(index), input.signature);
-            if (!flag1) {return false;}
+            Transaction.Output correspondOutput = lookup.apply(utxo);
+            if (correspondOutput == null){ return Rejection.NOT_IN_POOL;}
+            correspondOutputs[index] = correspondOutput;
 
             // Implementation of condition (3)
             boolean flag2=claimedUTXOs.add(utxo);
-            if (!flag2){return false;}
+            if (!flag2){return Rejection.DOUBLE_CLAIM;}
 
-            inputSum += correspondOutput.value;  //calculate inputSum for Implementation of (5)
+            //calculate inputSum for Implementation of (5); a sum beyond the long range saturates,
+            //which keeps the comparison of (5) right since outputSum cannot exceed it either
+            inputSum = saturatedAdd(inputSum, correspondOutput.value);
         }
 
         //Implementation of condition (4)
-        ArrayList<Transaction.Output> outputs = tx.getOutputs(); //obtain all outputs in tx
+        List<Transaction.Output> outputs = tx.outputs(); //obtain all outputs in tx
         for (Transaction.Output output:outputs){
-            if (output.value<=0){return false;}
-            outputSum += output.value;  //calculate outputSum for implementation of (5)
+            if (output.value<=0){return Rejection.INVALID_OUTPUT_VALUE;}
+        }
+        //calculate outputSum for implementation of (5), precomputed if tx is sealed; outputs summing
+        //beyond the long range exceed any input sum
+        try {
+            outputSum = tx.getTotalOutputValue();
+        } catch (ArithmeticException e) {
+            return Rejection.OUTPUTS_EXCEED_INPUTS;
         }
 
         //Implementation of condition (5)
         if (outputSum > inputSum) {
-            return false;
+            return Rejection.OUTPUTS_EXCEED_INPUTS;
         }
+        return null;
+    }
 
-        return true;  //if conditions (1)~(5) are satisfied, return true
+    /** @return a + b, clamped to the long range instead of overflowing */
+    static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        if (((a ^ sum) & (b ^ sum)) < 0)
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        return sum;
     }
 
     /**
@@ -72,32 +229,352 @@ public class TxHandler {
      * updating the current UTXO pool as appropriate.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long start = startTimer();
+        PreverifiedTx[] preverified = isParallel() ? verifySignatures(possibleTxs) : null;
+
         ArrayList<Transaction> acceptedTxs = new ArrayList<Transaction>();
-        for (Transaction tx:possibleTxs){
-            if (isValidTx(tx)){       //check if tx is valid
+        for (int i = 0; i < possibleTxs.length; i++){
+            Transaction tx = possibleTxs[i];
+            Rejection rejection = checkTx(tx, preverified == null ? null : preverified[i]);  //check if tx is valid
+            if (rejection == null){
                 acceptedTxs.add(tx);
+                applyTx(tx);
+            } else if (preverified != null) {
+                preverified[i].cancel();
+            }
+            decided(tx, rejection);
+        }
+        Transaction[] acceptedTxs_array=new Transaction[acceptedTxs.size()];
+        acceptedTxs.toArray(acceptedTxs_array);
+        epochHandled(possibleTxs.length, acceptedTxs_array.length, start);
+        return acceptedTxs_array;   //return all accepted Txs
+    }
 
-                //add newly created UXTOs into uPool
-                ArrayList<Transaction.Output> Outputs = tx.getOutputs(); //obtain all outputs in tx
-                for (Transaction.Output output:Outputs){
-                    int j=Outputs.indexOf(output);
-                    UTXO utxo = new UTXO(tx.getHash(), j);
-                    uPool.addUTXO(utxo, output);
+    /**
+     * Checks {@code tx} and, if it is valid, applies it to the pool, as one step. Several threads
+     * may accept transactions at the same time: with a ConcurrentUTXOPool, the inputs of a valid tx
+     * are claimed atomically, so transactions spending different UTXOs are accepted in parallel
+     * and of two transactions spending the same UTXO only one is; other pools are locked for the
+     * whole step.
+     *
+     * @return null if {@code tx} was accepted, and otherwise why it was rejected; a tx whose
+     *         inputs were spent by another thread after it was checked is rejected as NOT_IN_POOL
+     */
+    public Rejection acceptTx(Transaction tx) {
+        UTXOPool pool = uPool;
+        Rejection rejection;
+        if (!(pool instanceof ConcurrentUTXOPool)) {
+            synchronized (this) {
+                rejection = checkTx(tx);
+                if (rejection == null) {
+                    applyTx(tx);
                 }
+            }
+        } else {
+            rejection = claimTx(tx, (ConcurrentUTXOPool) pool);
+        }
+        decided(tx, rejection);
+        return rejection;
+    }
+
+    /** Checks {@code tx} and, if it is valid, claims its inputs in {@code pool} and adds its outputs */
+    private Rejection claimTx(Transaction tx, ConcurrentUTXOPool pool) {
+        Transaction.Output[] correspondOutputs = new Transaction.Output[tx.numInputs()];
+        Rejection rejection = checkTx(tx, null, correspondOutputs);
+        if (rejection != null) {
+            return rejection;
+        }
+        long start = startTimer();
+        UTXO[] inputs = new UTXO[tx.numInputs()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new UTXO(tx.input(i).prevTxHash, tx.input(i).outputIndex);
+        }
+        // the outputs checked must still be there, unspent, when the inputs are taken
+        if (!pool.claim(inputs, correspondOutputs)) {
+            return Rejection.NOT_IN_POOL;
+        }
+        UndoLog log = undoLog;
+        if (log != null) {
+            for (int i = 0; i < inputs.length; i++) {
+                log.recordRemove(inputs[i], correspondOutputs[i]);
+            }
+        }
+        for (int j = 0; j < tx.numOutputs(); j++) {
+            UTXO utxo = new UTXO(tx.hash(), j);
+            Transaction.Output output = tx.getOutput(j);   // a copy if tx is sealed, which the pool may hand out
+            if (log != null) {
+                // logged before the output can be claimed by another thread, whose removal is logged after
+                log.recordAdd(utxo, pool.getTxOutput(utxo), output);
+            }
+            pool.addUTXO(utxo, output);
+        }
+        stopTimer(Stage.APPLY, start);
+        return null;
+    }
+
+    /**
+     * Makes isValidTx and handleTxs remember verified signatures in {@code cache} (or stop doing so
+     * if it is null), so that re-proposed transactions only pay for the UTXO and value checks. The
+     * same cache may be shared by several handlers.
+     */
+    public void setSignatureCache(SignatureCache cache) {
+        this.signatureCache = cache;
+    }
+
+    /**
+     * Makes this handler report stage latencies, decisions and epochs to {@code listener}, or stop
+     * doing so if it is null. Without a listener, nothing is timed. A {@link TxHandlerMetrics}
+     * aggregates the reports in memory and a {@link JfrTxHandlerListener} records them as JFR events.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes this handler log the changes it makes to its pool, in an UndoLog per epoch (or any
+     * run of accepted transactions) ended by {@link #takeUndoLog()}, or stop doing so. Logging
+     * costs one more pool lookup per created output.
+     */
+    public void setUndoLogging(boolean enabled) {
+        undoLog = enabled ? new UndoLog() : null;
+    }
+
+    /**
+     * Ends the current undo log and starts a new one. Called after handleTxs, it returns the log
+     * of that epoch, which can roll uPool back to its state before the epoch. It must not be
+     * called while transactions are being accepted.
+     *
+     * @return the changes made to uPool since undo logging was turned on or the previous call,
+     *         or null if undo logging is off
+     */
+    public UndoLog takeUndoLog() {
+        UndoLog log = undoLog;
+        if (log != null) {
+            undoLog = new UndoLog();
+        }
+        return log;
+    }
+
+    /**
+     * Checks the signature of input {@code index} of {@code tx} against {@code pk}, through the
+     * signature cache if there is one. A sealed tx gives its data to sign and digest precomputed;
+     * for another one, the data to sign is serialized once and the digest taken from it.
+     */
+    boolean verifySignature(PublicKey pk, Transaction tx, int index) {
+        byte[] signature = tx.input(index).signature;
+        SignatureCache cache = signatureCache;
+        long start = startTimer();
+        byte[] message = tx.rawDataToSign(index);
+        byte[] digest = cache == null ? null
+                        : tx.isSealed() ? tx.signDataDigest(index) : Transaction.sha256(message);
+        start = stopTimer(Stage.SIGN_DATA, start);
+        boolean valid = cache != null ? cache.verifySignature(pk, message, digest, signature)
+                                      : Crypto.verifySignature(pk, message, signature);
+        stopTimer(Stage.SIGNATURE, start);
+        return valid;
+    }
+
+    /** @return the current time to pass to stopTimer, or 0 if there is no listener to report to */
+    long startTimer() {
+        return listener != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Reports the time elapsed since {@code start}, a value of startTimer, as the latency of
+     * {@code stage}
+     *
+     * @return the current time, to time the next stage, or 0 if nothing is timed
+     */
+    long stopTimer(Stage stage, long start) {
+        Listener l = listener;
+        if (l == null || start == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        l.onStage(stage, now - start);
+        return now;
+    }
+
+    /** Reports the decision on {@code tx}: accepted if {@code rejection} is null */
+    void decided(Transaction tx, Rejection rejection) {
+        Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        if (rejection == null) {
+            l.onAccepted(tx);
+        } else {
+            l.onRejected(tx, rejection);
+        }
+    }
 
-                //remove spent UXTOs from uPool
-                ArrayList<Transaction.Input> inputs = tx.getInputs(); //obtain all inputs in tx
-                for (Transaction.Input input:inputs){
-                    UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-                    uPool.removeUTXO(utxo);
+    /** Reports the end of an epoch started at {@code start}, a value of startTimer */
+    void epochHandled(int proposed, int accepted, long start) {
+        Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        stopTimer(Stage.EPOCH, start);
+        l.onEpoch(proposed, accepted, uPool);
+    }
+
+    /** @return true if signatures are verified in parallel on an executor */
+    boolean isParallel() {
+        return executor != null;
+    }
+
+    /** @return the executor given to the constructor, or null */
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /** Updates uPool with the accepted transaction {@code tx} */
+    void applyTx(Transaction tx) {
+        long start = startTimer();
+        UndoLog log = undoLog;
+        //add newly created UXTOs into uPool; a sealed tx gives copies of its outputs, so that
+        //changing an output found in the pool does not change the tx
+        ArrayList<Transaction.Output> Outputs = tx.getOutputs(); //obtain all outputs in tx
+        for (int j = 0; j < Outputs.size(); j++){
+            UTXO utxo = new UTXO(tx.hash(), j);
+            if (log != null) {log.recordAdd(utxo, uPool.getTxOutput(utxo), Outputs.get(j));}
+            uPool.addUTXO(utxo, Outputs.get(j));
+        }
+
+        //remove spent UXTOs from uPool
+        List<Transaction.Input> inputs = tx.inputs(); //obtain all inputs in tx
+        for (Transaction.Input input:inputs){
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (log != null) {log.recordRemove(utxo, uPool.getTxOutput(utxo));}
+            uPool.removeUTXO(utxo);
+        }
+        stopTimer(Stage.APPLY, start);
+    }
+
+    /**
+     * Submits the signature checks of the transactions in {@code txs} to the executor. The
+     * outputs claimed by inputs are looked up in the current pool or, for in-epoch chains, among
+     * the outputs created by {@code txs}, and only transactions that satisfy the conditions (1),
+     * (3), (4) and (5) against them get their signatures checked; isValidTx rejects the others
+     * without cryptography. Once a signature of a transaction is found bad, its remaining checks
+     * are cancelled.
+     */
+    PreverifiedTx[] verifySignatures(Transaction[] txs) {
+        HashMap<UTXO, Transaction.Output> epochOutputs = new HashMap<UTXO, Transaction.Output>();
+        for (Transaction tx : txs) {
+            if (tx.hash() == null) {
+                continue;
+            }
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                epochOutputs.putIfAbsent(new UTXO(tx.hash(), j), tx.output(j));
+            }
+        }
+        Function<UTXO, Transaction.Output> lookup = utxo -> {
+            Transaction.Output output = uPool.getTxOutput(utxo);
+            return output != null ? output : epochOutputs.get(utxo);
+        };
+
+        PreverifiedTx[] preverified = new PreverifiedTx[txs.length];
+        for (int i = 0; i < txs.length; i++) {
+            Transaction tx = txs[i];
+            PreverifiedTx p = new PreverifiedTx(tx.numInputs());
+            preverified[i] = p;
+            Transaction.Output[] claimed = new Transaction.Output[tx.numInputs()];
+            long start = startTimer();
+            Rejection rejection = checkCheapConditions(tx, lookup, claimed);
+            stopTimer(Stage.LOOKUP, start);
+            if (rejection != null) {
+                continue;
+            }
+            for (int j = 0; j < claimed.length; j++) {
+                PublicKey pk = claimed[j].address;
+                int index = j;
+                p.keys[j] = pk;
+                p.results.set(j, executor.submit(() -> p.verify(index, () -> verifySignature(pk, tx, index))));
+            }
+        }
+        return preverified;
+    }
+
+    /** Signature checks submitted for the inputs of one proposed transaction */
+    static class PreverifiedTx {
+        /** the key each input was checked against, or null if it was not submitted */
+        final PublicKey[] keys;
+        final AtomicReferenceArray<Future<Boolean>> results;
+        /** an input whose signature was found bad, or -1 */
+        private volatile int failedInput = -1;
+
+        PreverifiedTx(int numInputs) {
+            keys = new PublicKey[numInputs];
+            results = new AtomicReferenceArray<Future<Boolean>>(numInputs);
+        }
+
+        /**
+         * Runs the signature check of input {@code index}, unless another input was already found
+         * bad, and cancels the checks of the other inputs if this one is bad.
+         *
+         * @return the result of the check, or null if it was skipped
+         */
+        Boolean verify(int index, BooleanSupplier check) {
+            if (failedInput >= 0) {
+                return null;
+            }
+            boolean valid = check.getAsBoolean();
+            if (!valid) {
+                failedInput = index;
+                for (int j = 0; j < results.length(); j++) {
+                    Future<Boolean> f = results.get(j);
+                    if (j != index && f != null) {
+                        f.cancel(false);
+                    }
                 }
+            }
+            return valid;
+        }
 
+        /**
+         * @return true if an input was found bad against the key of the output it claims in
+         *         {@code correspondOutputs}, which makes the transaction invalid
+         */
+        boolean hasFailedAgainst(Transaction.Output[] correspondOutputs) {
+            int index = failedInput;
+            return index >= 0 && keys[index] == correspondOutputs[index].address;
+        }
 
+        /**
+         * Waits for the signature check of input {@code index}
+         *
+         * @return its result, or null if it was not submitted, skipped or cancelled
+         */
+        Boolean result(int index) {
+            Future<Boolean> result = results.get(index);
+            if (result == null) {
+                return null;
+            }
+            try {
+                return result.get();
+            } catch (CancellationException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while verifying signatures", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /** Drops the checks that are no longer needed because the transaction was rejected */
+        void cancel() {
+            for (int j = 0; j < results.length(); j++) {
+                Future<Boolean> f = results.get(j);
+                if (f != null) {
+                    f.cancel(false);
+                }
             }
         }
-        Transaction[] acceptedTxs_array=new Transaction[acceptedTxs.size()];
-        acceptedTxs.toArray(acceptedTxs_array);
-        return acceptedTxs_array;   //return all accepted Txs
     }
 
 }
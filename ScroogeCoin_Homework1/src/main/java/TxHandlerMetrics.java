@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A TxHandler.Listener aggregating what handlers report in memory: a latency histogram per stage,
+ * the number of accepted transactions and of rejected ones by failed condition, and gauges of the
+ * pool and of memory taken after every epoch. One instance may be set on several handlers; the
+ * counts then add up and the gauges follow the last epoch handled.
+ *
+ * <pre>
+ * TxHandlerMetrics metrics = new TxHandlerMetrics();
+ * handler.setListener(metrics);
+ * handler.handleTxs(txs);
+ * metrics.getLatency(TxHandler.Stage.SIGNATURE).getValueAtPercentile(99);
+ * </pre>
+ */
+public class TxHandlerMetrics implements TxHandler.Listener {
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[TxHandler.Stage.values().length];
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[TxHandler.Rejection.values().length];
+    private final LongAdder epochs = new LongAdder();
+    private volatile int poolSize;
+    private volatile long poolOffHeapBytes;
+    private volatile long heapUsedBytes;
+
+    public TxHandlerMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void onStage(TxHandler.Stage stage, long nanos) {
+        latencies[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void onAccepted(Transaction tx) {
+        accepted.increment();
+    }
+
+    @Override
+    public void onRejected(Transaction tx, TxHandler.Rejection reason) {
+        rejected[reason.ordinal()].increment();
+    }
+
+    @Override
+    public void onEpoch(int proposed, int accepted, UTXOPool pool) {
+        epochs.increment();
+        poolSize = pool.size();
+        poolOffHeapBytes = pool.offHeapBytes();
+        Runtime runtime = Runtime.getRuntime();
+        heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** @return the histogram of the latencies of {@code stage}, in nanoseconds */
+    public LatencyHistogram getLatency(TxHandler.Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /** @return the number of transactions accepted */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /** @return the number of transactions rejected for failing {@code reason} */
+    public long getRejected(TxHandler.Rejection reason) {
+        return rejected[reason.ordinal()].sum();
+    }
+
+    /** @return the number of transactions rejected, for any reason */
+    public long getRejected() {
+        long sum = 0;
+        for (LongAdder r : rejected) {
+            sum += r.sum();
+        }
+        return sum;
+    }
+
+    /** @return the number of epochs handled */
+    public long getEpochs() {
+        return epochs.sum();
+    }
+
+    /** @return the number of UTXOs in the pool after the last epoch */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /** @return the bytes the pool held outside the heap after the last epoch */
+    public long getPoolOffHeapBytes() {
+        return poolOffHeapBytes;
+    }
+
+    /** @return the heap in use, by the pool and everything else, after the last epoch */
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    /** Forgets the latencies and counts recorded so far; the gauges are kept */
+    public void reset() {
+        for (LatencyHistogram latency : latencies) {
+            latency.reset();
+        }
+        accepted.reset();
+        for (LongAdder r : rejected) {
+            r.reset();
+        }
+        epochs.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("epochs=").append(getEpochs()).append(" accepted=").append(getAccepted());
+        for (TxHandler.Rejection reason : TxHandler.Rejection.values()) {
+            sb.append(' ').append(reason).append('=').append(getRejected(reason));
+        }
+        sb.append(" poolSize=").append(poolSize).append(" poolOffHeapBytes=").append(poolOffHeapBytes)
+          .append(" heapUsedBytes=").append(heapUsedBytes);
+        for (TxHandler.Stage stage : TxHandler.Stage.values()) {
+            sb.append('\n').append(stage).append(": ").append(getLatency(stage));
+        }
+        return sb.toString();
+    }
+}
@@ -1,32 +1,134 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.BiConsumer;
 
 public class UTXOPool {
 
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output.
+     * The map is persistent, so copies and forks of a pool share it instead of copying it.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private PersistentHashMap<UTXO, Transaction.Output> H;
+
+    /** The UTXOs of H by the key they pay, shared between forks like H */
+    private OwnerIndex owners;
+
+    /** The commitment to the entries of H */
+    private SetCommitment commitment;
+
+    /** the pool this pool was forked from and its modification count at that time, for commit */
+    private UTXOPool parent;
+    private long parentModCount;
+    /** number of changes made to this pool, counted atomically for ConcurrentUTXOPool */
+    private volatile long modCount;
+    private static final AtomicLongFieldUpdater<UTXOPool> MOD_COUNT =
+            AtomicLongFieldUpdater.newUpdater(UTXOPool.class, "modCount");
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new PersistentHashMap<UTXO, Transaction.Output>();
+        owners = new OwnerIndex();
+        commitment = new SetCommitment();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, in O(1). A pool of a backend that
+     * does not keep its contents in the persistent map is copied entry by entry.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.isHeapBacked()) {
+            H = uPool.H.fork();
+            owners = uPool.owners.fork();
+            commitment = new SetCommitment(uPool.commitment);
+        } else {
+            H = new PersistentHashMap<UTXO, Transaction.Output>();
+            owners = new OwnerIndex();
+            commitment = new SetCommitment();
+            for (UTXO ut : uPool.getAllUTXO()) {
+                Transaction.Output txOut = uPool.getTxOutput(ut);
+                H.put(ut, txOut);
+                owners.update(ut, null, txOut);
+                commitment.add(ut, txOut);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of this pool, of the same backend, whose changes can later be committed to
+     *         this pool with {@link #commit(UTXOPool)}. Changes made to the fork are discarded by
+     *         dropping it. Forking a UTXOPool takes O(1).
+     */
+    public UTXOPool fork() {
+        UTXOPool fork = copy();
+        fork.parent = this;
+        fork.parentModCount = modCount;
+        return fork;
+    }
+
+    /** @return true if the contents of this pool are those of its persistent map */
+    protected boolean isHeapBacked() {
+        return true;
+    }
+
+    /** @return a copy of this pool of the same backend; backends other than UTXOPool override it */
+    protected UTXOPool copy() {
+        return new UTXOPool(this);
+    }
+
+    /** Replaces the contents of this pool by those of {@code fork}, a copy made by {@link #copy()} */
+    protected void replaceWith(UTXOPool fork) {
+        H = fork.H.fork();
+        owners = fork.owners.fork();
+        commitment = new SetCommitment(fork.commitment);
+    }
+
+    /** @return the number of changes made to this pool so far, to tell whether it changed since */
+    long modCount() {
+        return modCount;
+    }
+
+    /** Records a change of the contents; backends other than UTXOPool call it on every change */
+    protected void modified() {
+        MOD_COUNT.incrementAndGet(this);
+    }
+
+    /**
+     * Makes the contents of {@code fork}, a fork of this pool, the contents of this pool, in O(1).
+     *
+     * @throws IllegalArgumentException if {@code fork} was not forked from this pool
+     * @throws IllegalStateException if this pool was changed since {@code fork} was forked from it
+     */
+    public void commit(UTXOPool fork) {
+        if (fork.parent != this) {
+            throw new IllegalArgumentException("not a fork of this pool");
+        }
+        if (fork.parentModCount != modCount) {
+            throw new IllegalStateException("the pool was changed after the fork");
+        }
+        replaceWith(fork);
+        fork.parentModCount = MOD_COUNT.incrementAndGet(this);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        Transaction.Output previous = H.put(utxo, txOut);
+        owners.update(utxo, previous, txOut);
+        if (previous != null) {
+            commitment.remove(utxo, previous);
+        }
+        commitment.add(utxo, txOut);
+        modified();
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        Transaction.Output previous = H.remove(utxo);
+        owners.update(utxo, previous, null);
+        if (previous != null) {
+            commitment.remove(utxo, previous);
+        }
+        modified();
     }
 
     /**
@@ -37,18 +139,158 @@ public class UTXOPool {
         return H.get(ut);
     }
 
+    /**
+     * @return the transaction output created as output {@code index} of the transaction whose hash
+     *         is {@code txHash}, or null if it is not in the pool. Backends keyed by fixed-width
+     *         records answer without allocating a UTXO.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return getTxOutput(new UTXO(txHash, index));
+    }
+
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
         return H.containsKey(utxo);
     }
 
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return the number of bytes the pool holds outside the Java heap, in direct or mapped
+     *         buffers; 0 for the heap-backed pool
+     */
+    public long offHeapBytes() {
+        return 0;
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
+
+    /**
+     * @return the commitment to the contents of the pool, kept up to date by addUTXO and
+     *         removeUTXO, so that pools of any backend holding the same UTXOs and outputs are
+     *         told equal in O(1)
+     */
+    public SetCommitment getCommitment() {
+        return new SetCommitment(commitment);
+    }
+
+    /**
+     * @return the sum of the values of the UTXOs paying {@code owner}, kept up to date by addUTXO
+     *         and removeUTXO, in O(1)
+     */
+    public long getBalance(PublicKey owner) {
+        return owners.balance(owner);
+    }
+
+    /** @return the number of UTXOs paying {@code owner}, in O(1) */
+    public int getOwnedCount(PublicKey owner) {
+        return owners.count(owner);
+    }
+
+    /**
+     * Calls {@code action} on every UTXO paying {@code owner} and its output, in no particular
+     * order, without copying them, in O(k) for k UTXOs. The pool must not be changed meanwhile.
+     */
+    public void forEachOwned(PublicKey owner, BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        owners.forEach(owner, action);
+    }
+
+    /** @return the UTXOs paying {@code owner}, in O(k) for k UTXOs */
+    public ArrayList<UTXO> getOwnedUTXO(PublicKey owner) {
+        ArrayList<UTXO> owned = new ArrayList<UTXO>(getOwnedCount(owner));
+        forEachOwned(owner, (ut, txOut) -> owned.add(ut));
+        return owned;
+    }
+
+    /**
+     * The UTXOs of a pool by the key they pay, with their sum. Like PersistentHashMap, an index is
+     * forked in O(1): the entry of a key is shared until one of the forks changes it, which then
+     * replaces it with its own copy, itself a fork of the shared map of UTXOs. Outputs without a
+     * key are not indexed. Balances beyond the long range wrap around.
+     */
+    private static final class OwnerIndex {
+        private PersistentHashMap<PublicKey, Owned> owners;
+        /** token of the index allowed to update an entry in place */
+        private Object edit = new Object();
+
+        /** The UTXOs paying one key and their sum */
+        private static final class Owned {
+            final Object edit;
+            long balance;
+            final PersistentHashMap<UTXO, Transaction.Output> utxos;
+
+            Owned(Object edit, long balance, PersistentHashMap<UTXO, Transaction.Output> utxos) {
+                this.edit = edit;
+                this.balance = balance;
+                this.utxos = utxos;
+            }
+        }
+
+        OwnerIndex() {
+            this(new PersistentHashMap<PublicKey, Owned>());
+        }
+
+        private OwnerIndex(PersistentHashMap<PublicKey, Owned> owners) {
+            this.owners = owners;
+        }
+
+        /** @return an independent copy of this index, in O(1) */
+        OwnerIndex fork() {
+            edit = new Object();
+            return new OwnerIndex(owners.fork());
+        }
+
+        /** Records that {@code utxo}, mapped to {@code previous} or absent, is now mapped to {@code txOut} or absent */
+        void update(UTXO utxo, Transaction.Output previous, Transaction.Output txOut) {
+            if (previous != null && previous.address != null) {
+                Owned owned = owned(previous.address);
+                owned.utxos.remove(utxo);
+                owned.balance -= previous.value;
+                if (owned.utxos.size() == 0) {
+                    owners.remove(previous.address);
+                }
+            }
+            if (txOut != null && txOut.address != null) {
+                Owned owned = owned(txOut.address);
+                owned.utxos.put(utxo, txOut);
+                owned.balance += txOut.value;
+            }
+        }
+
+        /** @return the entry of {@code key} that this index may change, created if needed */
+        private Owned owned(PublicKey key) {
+            Owned owned = owners.get(key);
+            if (owned == null || owned.edit != edit) {
+                owned = owned == null ? new Owned(edit, 0, new PersistentHashMap<UTXO, Transaction.Output>())
+                                      : new Owned(edit, owned.balance, owned.utxos.fork());
+                owners.put(key, owned);
+            }
+            return owned;
+        }
+
+        long balance(PublicKey key) {
+            Owned owned = owners.get(key);
+            return owned == null ? 0 : owned.balance;
+        }
+
+        int count(PublicKey key) {
+            Owned owned = owners.get(key);
+            return owned == null ? 0 : owned.utxos.size();
+        }
+
+        void forEach(PublicKey key, BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+            Owned owned = owners.get(key);
+            if (owned != null) {
+                owned.utxos.forEach(action);
+            }
+        }
+    }
 }
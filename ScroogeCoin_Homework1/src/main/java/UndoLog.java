@@ -0,0 +1,124 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The net changes made to a UTXO pool by one epoch (or any run of accepted transactions): for
+ * every UTXO changed, the output it had before, or none, and the output it has after, or none.
+ * A UTXO created and spent within the epoch leaves no trace. The log takes memory and time in
+ * proportion to the transactions applied, not to the pool, and can roll the pool back to the state
+ * before the epoch or forward again to the state after it, so that a reorganization of K epochs
+ * costs the rollback of K logs and the application of the new epochs, whatever the pool size.
+ *
+ * A TxHandler fills logs when undo logging is on, see {@link TxHandler#setUndoLogging(boolean)}.
+ * Outputs are kept by reference.
+ */
+public class UndoLog {
+
+    /** the output each changed UTXO had before the changes, or null if it was not in the pool */
+    private final LinkedHashMap<UTXO, Transaction.Output> before = new LinkedHashMap<UTXO, Transaction.Output>();
+    /** the output each changed UTXO has after the changes, or null if it is not in the pool */
+    private final HashMap<UTXO, Transaction.Output> after = new HashMap<UTXO, Transaction.Output>();
+
+    /** Records that {@code utxo}, which was mapped to {@code previous} or absent, is now mapped to {@code output} */
+    synchronized void recordAdd(UTXO utxo, Transaction.Output previous, Transaction.Output output) {
+        record(utxo, previous, output);
+    }
+
+    /** Records that {@code utxo}, which was mapped to {@code previous}, was removed */
+    synchronized void recordRemove(UTXO utxo, Transaction.Output previous) {
+        record(utxo, previous, null);
+    }
+
+    private void record(UTXO utxo, Transaction.Output previous, Transaction.Output output) {
+        if (!before.containsKey(utxo)) {
+            before.put(utxo, previous);
+        }
+        if (sameOutput(before.get(utxo), output)) {
+            // back to where it was, e.g. an output created and spent in the same epoch
+            before.remove(utxo);
+            after.remove(utxo);
+        } else {
+            after.put(utxo, output);
+        }
+    }
+
+    /** @return the number of UTXOs changed */
+    public synchronized int size() {
+        return before.size();
+    }
+
+    /**
+     * @return the UTXOs that were in the pool before the changes and are gone or mapped to another
+     *         output after them, mapped to the output they had
+     */
+    public synchronized Map<UTXO, Transaction.Output> getRemoved() {
+        Map<UTXO, Transaction.Output> removed = new HashMap<UTXO, Transaction.Output>();
+        for (Map.Entry<UTXO, Transaction.Output> e : before.entrySet()) {
+            if (e.getValue() != null) {
+                removed.put(e.getKey(), e.getValue());
+            }
+        }
+        return removed;
+    }
+
+    /** @return the UTXOs that are in the pool after the changes and were not, or had another output, before */
+    public synchronized Set<UTXO> getAdded() {
+        Set<UTXO> added = new HashSet<UTXO>();
+        for (Map.Entry<UTXO, Transaction.Output> e : after.entrySet()) {
+            if (e.getValue() != null) {
+                added.add(e.getKey());
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Undoes the changes on {@code pool}, which must be in the state they led to
+     *
+     * @throws IllegalStateException if a UTXO the changes added is missing from {@code pool} or a
+     *         UTXO they removed is in it; the pool is then left unchanged
+     */
+    public synchronized void rollBack(UTXOPool pool) {
+        apply(pool, after, before);
+    }
+
+    /**
+     * Redoes the changes on {@code pool}, which must be in the state before them, e.g. after
+     * {@link #rollBack(UTXOPool)}
+     *
+     * @throws IllegalStateException if a UTXO the changes removed is missing from {@code pool} or
+     *         a UTXO they added is in it; the pool is then left unchanged
+     */
+    public synchronized void rollForward(UTXOPool pool) {
+        apply(pool, before, after);
+    }
+
+    /** Takes the UTXOs of {@code pool} from their outputs in {@code from} to those in {@code to} */
+    private void apply(UTXOPool pool, Map<UTXO, Transaction.Output> from, Map<UTXO, Transaction.Output> to) {
+        // checked first, so that a log applied to the wrong pool changes nothing
+        for (Map.Entry<UTXO, Transaction.Output> e : from.entrySet()) {
+            if (pool.contains(e.getKey()) != (e.getValue() != null)) {
+                throw new IllegalStateException("the pool is not in the state the log starts from: " + e.getKey());
+            }
+        }
+        for (Map.Entry<UTXO, Transaction.Output> e : to.entrySet()) {
+            if (e.getValue() == null) {
+                pool.removeUTXO(e.getKey());
+            } else {
+                pool.addUTXO(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /** @return true if {@code a} and {@code b} are both absent or pay the same value to the same key */
+    private static boolean sameOutput(Transaction.Output a, Transaction.Output b) {
+        if (a == b) {
+            return true;
+        }
+        return a != null && b != null && a.value == b.value && Objects.equals(a.address, b.address);
+    }
+}
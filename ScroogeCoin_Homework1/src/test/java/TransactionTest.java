@@ -0,0 +1,287 @@
+import junit.framework.TestCase;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+
+public class TransactionTest extends TestCase {
+	private KeyPair AliceKeypair;
+	private KeyPair BobKeypair;
+	private Transaction tx;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
+		keyGen.initialize(1024, SecureRandom.getInstance("SHA1PRNG", "SUN"));
+		AliceKeypair = keyGen.generateKeyPair();
+		BobKeypair = keyGen.generateKeyPair();
+
+		// a Tx with 2 inputs and 3 outputs, signed on its 1st input only
+		byte[] prevTxHash = new byte[32];
+		Arrays.fill(prevTxHash, (byte) 7);
+		// made with the double-valued format, so with outputs in coins and legacy encoding
+		tx = new Transaction();
+		tx.setLegacyEncoding(true);
+		tx.addInput(prevTxHash, 0);
+		tx.addInput(prevTxHash, 3);
+		tx.addOutputCoins(4, AliceKeypair.getPublic());
+		tx.addOutputCoins(2.5, BobKeypair.getPublic());
+		tx.addOutputCoins(0.125, AliceKeypair.getPublic());
+		tx.addSignature(new byte[] { 1, 2, 3 }, 0);
+	}
+
+	//legacyRawData() is the byte-by-byte serialization that signatures were originally made over
+	private byte[] legacyRawData(Transaction tx, int index) {
+		ArrayList<Byte> data = new ArrayList<Byte>();
+		for (int i = 0; i < tx.numInputs(); i++) {
+			if (index >= 0 && i != index) {
+				continue;
+			}
+			Transaction.Input in = tx.getInput(i);
+			for (byte b : in.prevTxHash) data.add(b);
+			for (byte b : ByteBuffer.allocate(4).putInt(in.outputIndex).array()) data.add(b);
+			if (index < 0 && in.signature != null)
+				for (byte b : in.signature) data.add(b);
+		}
+		for (Transaction.Output op : tx.getOutputs()) {
+			for (byte b : ByteBuffer.allocate(8).putDouble(Transaction.unitsToCoins(op.value)).array()) data.add(b);
+			for (byte b : op.address.getEncoded()) data.add(b);
+		}
+		byte[] bytes = new byte[data.size()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = data.get(i);
+		return bytes;
+	}
+
+	/**
+	 * testSerialization() is to test whether getRawDataToSign() and getRawTx() produce exactly
+	 * the bytes of the original serialization, so that existing signatures still verify
+	 */
+	public void testSerialization() {
+		assertTrue(Arrays.equals(legacyRawData(tx, 0), tx.getRawDataToSign(0)));
+		assertTrue(Arrays.equals(legacyRawData(tx, 1), tx.getRawDataToSign(1)));
+		assertTrue(Arrays.equals(legacyRawData(tx, -1), tx.getRawTx()));
+	}
+
+	/**
+	 * testOutputChange() is to test whether the cached serialization of the outputs follows
+	 * outputs that are added or modified after a previous serialization
+	 */
+	public void testOutputChange() {
+		byte[] before = tx.getRawDataToSign(0);
+		tx.getOutput(1).value = 3 * Transaction.UNITS_PER_COIN;
+		assertFalse(Arrays.equals(before, tx.getRawDataToSign(0)));
+		assertTrue(Arrays.equals(legacyRawData(tx, 0), tx.getRawDataToSign(0)));
+
+		tx.getOutput(2).address = BobKeypair.getPublic();
+		assertTrue(Arrays.equals(legacyRawData(tx, 1), tx.getRawDataToSign(1)));
+
+		tx.addOutputCoins(1, BobKeypair.getPublic());
+		assertTrue(Arrays.equals(legacyRawData(tx, -1), tx.getRawTx()));
+	}
+
+	/**
+	 * testFixedPointEncoding() is to test whether output values are serialized as variable-length
+	 * integers of base units by default, and whether coin amounts convert to base units exactly
+	 */
+	public void testFixedPointEncoding() {
+		byte[] legacy = tx.getRawTx();
+		tx.setLegacyEncoding(false);
+		byte[] raw = tx.getRawTx();
+		// each 8-byte double becomes a varint: 4 coins and 2.5 coins take 5 bytes, 0.125 coins 4 bytes
+		assertEquals(legacy.length - 3 - 3 - 4, raw.length);
+		assertFalse(Arrays.equals(legacy, raw));
+
+		Transaction small = new Transaction();
+		small.addOutput(300, AliceKeypair.getPublic());
+		byte[] data = small.getRawTx();
+		// zigzag(300) = 600 = 0b100_1011000, written low 7 bits first
+		assertEquals((byte) 0xD8, data[0]);
+		assertEquals((byte) 0x04, data[1]);
+
+		assertEquals(250000000L, Transaction.coinsToUnits(2.5));
+		assertEquals(2.5, Transaction.unitsToCoins(250000000L), 0);
+		try {
+			Transaction.coinsToUnits(0.1 + 0.2);
+			fail("0.30000000000000004 coins are not a whole number of base units");
+		} catch (ArithmeticException e) {
+		}
+	}
+
+	/**
+	 * testCodec() is to test whether TxCodec decodes its encoding back to the same Tx, writes each
+	 * public key once, reads fields in place through a View, and rejects truncated encodings and
+	 * hashes not matching the contents
+	 */
+	public void testCodec() {
+		tx.finalize();
+		byte[] encoded = TxCodec.encode(tx);
+		assertEquals(TxCodec.encodedSize(tx), encoded.length);
+
+		Transaction decoded = TxCodec.decode(encoded);
+		assertTrue(Arrays.equals(tx.getHash(), decoded.getHash()));
+		assertTrue(decoded.isLegacyEncoding());
+		assertTrue(Arrays.equals(tx.getRawTx(), decoded.getRawTx()));
+		assertTrue(Arrays.equals(tx.getRawDataToSign(0), decoded.getRawDataToSign(0)));
+		assertNull(decoded.getInput(1).signature);
+
+		// two Txs back to back in one buffer
+		ByteBuffer stream = ByteBuffer.allocate(2 * encoded.length);
+		TxCodec.encode(tx, stream);
+		TxCodec.encode(tx, stream);
+		stream.flip();
+		TxCodec.View view = TxCodec.view(stream);
+		assertEquals(encoded.length, stream.position());
+		assertEquals(2, view.numInputs());
+		assertEquals(3, view.getOutputIndex(1));
+		assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), view.getSignature(0));
+		assertEquals(3, view.numOutputs());
+		assertEquals(Transaction.coinsToUnits(2.5), view.getValue(1));
+		assertEquals(2, view.numAddresses());   // Alice is paid twice but written once
+		assertEquals(view.getAddressIndex(0), view.getAddressIndex(2));
+		assertEquals(AliceKeypair.getPublic(), view.getAddress(2));
+		assertTrue(Arrays.equals(tx.getHash(), TxCodec.decode(stream).getHash()));
+		assertFalse(stream.hasRemaining());
+
+		try {
+			TxCodec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+			fail("a truncated encoding was decoded");
+		} catch (IllegalArgumentException e) {
+		}
+
+		// a Tx claiming the hash of another, whose outputs it would overwrite
+		byte[] tampered = encoded.clone();
+		tampered[3] ^= 1;   // first byte of the hash, after the version, flags and hash length
+		try {
+			TxCodec.decode(tampered);
+			fail("a Tx with a hash not matching its contents was decoded");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * testSeal() is to test whether a sealed Tx keeps its hash, data to sign and total output value,
+	 * and refuses every change, while a copy of it can still be changed
+	 */
+	public void testSeal() throws NoSuchAlgorithmException {
+		Transaction unsealed = new Transaction(tx);
+		unsealed.finalize();
+		byte[] dataToSign = tx.getRawDataToSign(1);
+		tx.seal();
+		assertTrue(tx.isSealed());
+		assertTrue(Arrays.equals(unsealed.getHash(), tx.getHash()));
+		assertTrue(Arrays.equals(dataToSign, tx.getRawDataToSign(1)));
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(dataToSign), tx.getSignDataDigest(1)));
+		assertEquals(Transaction.coinsToUnits(6.625), tx.getTotalOutputValue());
+
+		try {
+			tx.addOutput(1, BobKeypair.getPublic());
+			fail("an output was added to a sealed Tx");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			tx.addSignature(new byte[] { 4 }, 1);
+			fail("a sealed Tx was signed");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			Iterator<Transaction.Input> it = tx.getInputs().iterator();
+			it.next();
+			it.remove();
+			fail("an input was removed from a sealed Tx");
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			tx.getOutputs().subList(0, 1).set(0, null);
+			fail("an output of a sealed Tx was replaced");
+		} catch (UnsupportedOperationException e) {
+		}
+		tx.getRawTx()[0] ^= 1;
+		tx.finalize();
+		assertTrue(Arrays.equals(unsealed.getHash(), tx.getHash()));
+
+		Transaction copy = new Transaction(tx);
+		assertFalse(copy.isSealed());
+		copy.getOutput(0).value = 1;
+		copy.addOutput(1, BobKeypair.getPublic());
+		assertEquals(3, tx.numOutputs());
+		assertEquals(Transaction.coinsToUnits(4), tx.getOutput(0).value);
+	}
+
+	/**
+	 * testCrypto() is to test whether a key verifies many messages with its reused verifier, also
+	 * after an invalid or malformed signature, past the number of verifiers kept per thread and in
+	 * batches, and whether decoded keys and LRU maps are cached within their bounds
+	 */
+	public void testCrypto() throws Exception {
+		byte[][] messages = new byte[20][];
+		byte[][] signatures = new byte[20][];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = new byte[] { (byte) i, 1, 2, 3 };
+			signatures[i] = Crypto.sign(AliceKeypair.getPrivate(), messages[i]);
+		}
+		PublicKey alice = AliceKeypair.getPublic();
+		for (int i = 0; i < messages.length; i++) {
+			assertTrue(Crypto.verifySignature(alice, messages[i], signatures[i]));
+			assertFalse(Crypto.verifySignature(alice, messages[i], signatures[(i + 1) % messages.length]));
+		}
+		// an invalid, then a malformed signature, each followed by a valid one under the same key
+		assertFalse(Crypto.verifySignature(alice, messages[0], signatures[1]));
+		assertTrue(Crypto.verifySignature(alice, messages[1], signatures[1]));
+		assertFalse(Crypto.verifySignature(alice, messages[0], new byte[] { 1, 2, 3 }));
+		assertTrue(Crypto.verifySignature(alice, messages[2], signatures[2]));
+		assertFalse(Crypto.verifySignature(BobKeypair.getPublic(), messages[0], signatures[0]));
+
+		// more keys than verifiers kept per thread, in turn and in one batch
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
+		keyGen.initialize(1024, SecureRandom.getInstance("SHA1PRNG", "SUN"));
+		int n = Crypto.VERIFIERS_PER_THREAD + 44;
+		PublicKey[] keys = new PublicKey[2 * n];
+		byte[][] batchMessages = new byte[2 * n][];
+		byte[][] batchSignatures = new byte[2 * n][];
+		for (int i = 0; i < n; i++) {
+			KeyPair pair = keyGen.generateKeyPair();
+			keys[i] = keys[n + i] = pair.getPublic();
+			batchMessages[i] = messages[i % messages.length];
+			batchSignatures[i] = Crypto.sign(pair.getPrivate(), batchMessages[i]);
+			batchMessages[n + i] = messages[(i + 1) % messages.length];
+			batchSignatures[n + i] = i % 3 == 0 ? new byte[] { 4 } : Crypto.sign(pair.getPrivate(), batchMessages[n + i]);
+		}
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < n; i++) {
+				assertTrue(Crypto.verifySignature(keys[i], batchMessages[i], batchSignatures[i]));
+			}
+		}
+		boolean[] valid = Crypto.verifySignatures(keys, batchMessages, batchSignatures);
+		for (int i = 0; i < 2 * n; i++) {
+			assertEquals(i < n || (i - n) % 3 != 0, valid[i]);
+		}
+		assertEquals(0, Crypto.verifySignatures(new PublicKey[0], new byte[0][], new byte[0][]).length);
+		try {
+			Crypto.verifySignatures(keys, messages, signatures);
+			fail("a batch of keys, messages and signatures differing in number was verified");
+		} catch (IllegalArgumentException e) {
+		}
+
+		byte[] encoded = alice.getEncoded();
+		PublicKey decoded = Crypto.decodePublicKey(encoded);
+		assertEquals(alice, decoded);
+		encoded[encoded.length - 1] ^= 1;
+		assertSame(decoded, Crypto.decodePublicKey(alice.getEncoded()));
+		assertNull(Crypto.decodePublicKey(new byte[] { 1, 2, 3 }));
+
+		Crypto.LruMap<Integer, Integer> lru = new Crypto.LruMap<Integer, Integer>(3);
+		for (int i = 0; i < 4; i++) {
+			lru.put(i, i);
+		}
+		assertEquals(3, lru.size());
+		assertFalse(lru.containsKey(0));
+		lru.get(1);
+		lru.put(4, 4);
+		assertTrue(lru.containsKey(1));
+		assertFalse(lru.containsKey(2));
+	}
+}
@@ -1,5 +1,13 @@
 import junit.framework.TestCase;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 
 public class TxHandlerTest extends TestCase {
@@ -399,5 +407,623 @@ public class TxHandlerTest extends TestCase {
 
 	}
 
+	//transfer() is to build a Tx in which the owner of the index-th output of prevTx sends value coins to receiver
+	private Transaction transfer(Transaction prevTx, int index, KeyPair owner, long value, KeyPair receiver)
+			throws NoSuchAlgorithmException, NoSuchProviderException, SignatureException, InvalidKeyException {
+		Transaction tx = new Transaction();
+		tx.addInput(prevTx.getHash(), index);
+		tx.addOutput(value, receiver.getPublic());
+		tx.addSignature(signMessage(owner.getPrivate(), tx.getRawDataToSign(0)), 0);
+		tx.finalize();
+		return tx;
+	}
+
+	/**
+	 * testParallelVerification() is to test whether handleTxs() with a parallel signature
+	 * verification executor accepts exactly the Txs of the sequential mode, in the same order
+	 */
+	public void testParallelVerification()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx2, 0, BobKeypair, 10, CharlieKeypair);
+		Transaction tx4 = transfer(tx1, 0, AliceKeypair, 10, CharlieKeypair);   // double spending with tx2
+		Transaction tx5 = transfer(tx2, 0, CharlieKeypair, 10, DavidKeypair);   // signed by the wrong key
+		Transaction[] possibleTxs = new Transaction[] { tx3, tx1, tx2, tx4, tx5 };
+
+		UTXOPool initialPool = txHandler.uPool;
+		Transaction[] sequential = new TxHandler(initialPool).handleTxs(possibleTxs);
+
+		ForkJoinPool executor = new ForkJoinPool(4);
+		try {
+			TxHandler parallelHandler = new TxHandler(initialPool, executor);
+			Transaction[] parallel = parallelHandler.handleTxs(possibleTxs);
+			assertEquals(2, parallel.length);
+			assertEquals(sequential.length, parallel.length);
+			for (int i = 0; i < parallel.length; i++) {
+				assertSame(sequential[i], parallel[i]);
+			}
+			assertFalse(parallelHandler.uPool.contains(new UTXO(tx1.getHash(), 0)));
+			assertTrue(parallelHandler.uPool.contains(new UTXO(tx2.getHash(), 0)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * testBatchVerification() is to test whether Txs failing the conditions that need no
+	 * cryptography are rejected without verifying any of their signatures, in both modes
+	 */
+	public void testBatchVerification()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(genesisTx, 0, ScroogeKeypair, 11, BobKeypair);   // outputs exceed inputs
+		Transaction tx3 = transfer(tx1, 5, AliceKeypair, 1, BobKeypair);            // no such output
+		Transaction tx4 = transfer(tx1, 0, AliceKeypair, -1, BobKeypair);           // negative output
+		Transaction tx5 = transfer(tx1, 0, BobKeypair, 20, CharlieKeypair);         // wrong key, and exceeding
+		Transaction[] possibleTxs = new Transaction[] { tx1, tx2, tx3, tx4, tx5 };
+
+		// the cheap conditions are reported before a bad signature
+		TxHandler afterTx1 = new TxHandler(txHandler.uPool);
+		afterTx1.handleTxs(new Transaction[] { tx1 });
+		assertEquals(TxHandler.Rejection.OUTPUTS_EXCEED_INPUTS, afterTx1.checkTx(tx5));
+
+		ForkJoinPool executor = new ForkJoinPool(4);
+		try {
+			for (TxHandler handler : new TxHandler[] { new TxHandler(txHandler.uPool), new TxHandler(txHandler.uPool, executor) }) {
+				SignatureCache cache = new SignatureCache(100);
+				handler.setSignatureCache(cache);
+				Transaction[] acceptedTxs = handler.handleTxs(possibleTxs);
+				assertEquals(1, acceptedTxs.length);
+				assertSame(tx1, acceptedTxs[0]);
+				assertEquals(1, cache.getMisses());   // only the signature of tx1 was verified
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * testConcurrentAccept() is to test whether threads accepting Txs at the same time on a
+	 * ConcurrentUTXOPool accept exactly one of two Txs spending the same UTXO
+	 */
+	public void testConcurrentAccept() throws Exception {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx1, 0, AliceKeypair, 9, CharlieKeypair);   // double spending with tx2
+		for (int round = 0; round < 20; round++) {
+			TxHandler handler = new TxHandler(new ConcurrentUTXOPool(txHandler.uPool));
+			assertNull(handler.acceptTx(tx1));
+			TxHandler.Rejection[] rejections = new TxHandler.Rejection[2];
+			Thread thread = new Thread(() -> rejections[1] = handler.acceptTx(tx3));
+			thread.start();
+			rejections[0] = handler.acceptTx(tx2);
+			thread.join();
+			assertTrue((rejections[0] == null) != (rejections[1] == null));
+			assertEquals(TxHandler.Rejection.NOT_IN_POOL, rejections[0] == null ? rejections[1] : rejections[0]);
+			assertEquals(1, handler.uPool.size());
+		}
+	}
+
+	/**
+	 * testOptimistic() is to test whether OptimisticTxHandler, executing an epoch of chained and
+	 * conflicting Txs in parallel, accepts exactly the Txs of the sequential mode, in the same order
+	 */
+	public void testOptimistic() throws Exception {
+		// Scrooge splits his coin into 10 outputs, each spent by a chain of 3 Txs, with double spendings
+		Transaction split = new Transaction();
+		split.addInput(genesisTx.getHash(), 0);
+		for (int j = 0; j < 10; j++) {
+			split.addOutput(1, ScroogeKeypair.getPublic());
+		}
+		split.addSignature(signMessage(ScroogeKeypair.getPrivate(), split.getRawDataToSign(0)), 0);
+		split.finalize();
+		List<Transaction> txs = new ArrayList<Transaction>();
+		txs.add(split);
+		KeyPair[] owners = { ScroogeKeypair, AliceKeypair, BobKeypair, CharlieKeypair };
+		for (int j = 0; j < 10; j++) {
+			Transaction prev = split;
+			int index = j;
+			for (int k = 1; k < owners.length; k++) {
+				Transaction next = transfer(prev, index, owners[k - 1], 1, owners[k]);
+				txs.add(next);
+				if (k == 2 && j % 3 == 0) {
+					txs.add(transfer(prev, index, owners[k - 1], 1, DavidKeypair));   // double spending
+				}
+				prev = next;
+				index = 0;
+			}
+		}
+		Collections.shuffle(txs, new Random(7));
+		Transaction[] possibleTxs = txs.toArray(new Transaction[txs.size()]);
+
+		TxHandler sequentialHandler = new TxHandler(txHandler.uPool);
+		Transaction[] sequential = sequentialHandler.handleTxs(possibleTxs);
+		ForkJoinPool executor = new ForkJoinPool(4);
+		try {
+			for (ExecutorService e : new ExecutorService[] { null, executor }) {
+				OptimisticTxHandler handler = new OptimisticTxHandler(txHandler.uPool, e);
+				Transaction[] optimistic = handler.handleTxs(possibleTxs);
+				assertTrue(Arrays.equals(sequential, optimistic));
+				assertTrue(handler.getLastExecutions() >= possibleTxs.length);
+				assertEquals(new HashSet<UTXO>(sequentialHandler.uPool.getAllUTXO()), new HashSet<UTXO>(handler.uPool.getAllUTXO()));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * testEpochScheduler() is to test whether EpochScheduler accepts in-epoch child Txs that come
+	 * before their parents, and reports the children of rejected Txs as dropped
+	 */
+	public void testEpochScheduler()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx2, 0, BobKeypair, 10, CharlieKeypair);
+		Transaction tx4 = transfer(tx1, 0, AliceKeypair, 10, CharlieKeypair);   // double spending with tx2
+		Transaction tx5 = transfer(tx4, 0, CharlieKeypair, 10, DavidKeypair);
+
+		// handleTxs() only accepts tx1, because every child comes before its parent
+		UTXOPool initialPool = txHandler.uPool;
+		assertEquals(1, new TxHandler(initialPool).handleTxs(new Transaction[] { tx5, tx3, tx4, tx2, tx1 }).length);
+
+		// tx2 comes before tx4 in the array, so tx2 wins the conflict and tx5 is dropped
+		EpochScheduler.Result result = new EpochScheduler(txHandler).schedule(new Transaction[] { tx5, tx3, tx2, tx4, tx1 });
+		assertEquals(3, result.getAccepted().length);
+		assertSame(tx1, result.getAccepted()[0]);
+		assertSame(tx2, result.getAccepted()[1]);
+		assertSame(tx3, result.getAccepted()[2]);
+		assertEquals(1, result.getRejected().length);
+		assertSame(tx4, result.getRejected()[0]);
+		assertEquals(1, result.getDropped().length);
+		assertSame(tx5, result.getDropped()[0]);
+		assertTrue(txHandler.uPool.contains(new UTXO(tx3.getHash(), 0)));
+	}
+
+	/**
+	 * testMaxFee() is to test whether MaxFeeTxHandler resolves a double spending in favour of the
+	 * Txs paying the higher total fee (counting in-epoch children) instead of the Tx that comes first
+	 */
+	public void testMaxFee()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 9, AliceKeypair);   // fee 1
+		Transaction tx2 = transfer(genesisTx, 0, ScroogeKeypair, 8, BobKeypair);     // fee 2, conflicting with tx1
+		Transaction tx3 = transfer(tx1, 0, AliceKeypair, 6, CharlieKeypair);         // fee 3, child of tx1
+
+		MaxFeeTxHandler maxFeeHandler = new MaxFeeTxHandler(txHandler.uPool);
+		Transaction[] acceptedTxs = maxFeeHandler.handleTxs(new Transaction[] { tx2, tx3, tx1 });
+		assertEquals(2, acceptedTxs.length);
+		assertSame(tx1, acceptedTxs[0]);
+		assertSame(tx3, acceptedTxs[1]);
+
+		// without tx3, tx2 pays more than tx1 although it comes later
+		MaxFeeTxHandler handler = new MaxFeeTxHandler(txHandler.uPool, null, MaxFeeTxHandler.Objective.FEES, 1000);
+		acceptedTxs = handler.handleTxs(new Transaction[] { tx1, tx2 });
+		assertEquals(1, acceptedTxs.length);
+		assertSame(tx2, acceptedTxs[0]);
+		assertEquals(2, new MaxFeeTxHandler(txHandler.uPool).fee(tx2));
+
+		// too many claimants of one UTXO for the exact search; the one paying the highest fee wins
+		Transaction[] claimants = new Transaction[MaxFeeTxHandler.EXACT_LIMIT + 40];
+		for (int k = 0; k < claimants.length; k++) {
+			claimants[k] = transfer(genesisTx, 0, ScroogeKeypair, k == 17 ? 1 : 2 + k % 8, BobKeypair);
+		}
+		acceptedTxs = new MaxFeeTxHandler(txHandler.uPool).handleTxs(claimants);
+		assertEquals(1, acceptedTxs.length);
+		assertSame(claimants[17], acceptedTxs[0]);
+
+		// with no budget left, nothing is validated, and everything may be proposed again
+		TxHandlerMetrics metrics = new TxHandlerMetrics();
+		handler = new MaxFeeTxHandler(txHandler.uPool, null, MaxFeeTxHandler.Objective.FEES, 0);
+		handler.setListener(metrics);
+		assertEquals(0, handler.handleTxs(new Transaction[] { tx1, tx2 }).length);
+		assertEquals(2, metrics.getRejected(TxHandler.Rejection.OUT_OF_BUDGET));
+		assertTrue(txHandler.uPool.contains(new UTXO(genesisTx.getHash(), 0)));
+	}
+
+	/**
+	 * testSignatureCache() is to test whether a Tx rejected in one epoch and proposed again in the
+	 * next one has its signature taken from the SignatureCache
+	 */
+	public void testSignatureCache()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		SignatureCache cache = new SignatureCache(100);
+		txHandler.setSignatureCache(cache);
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx1, 0, BobKeypair, 10, CharlieKeypair);   // signed by the wrong key
+
+		// tx2 comes before its parent, so it is rejected in the 1st epoch
+		assertEquals(1, txHandler.handleTxs(new Transaction[] { tx2, tx1 }).length);
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// tx2 is verified once more against the new pool, and taken from the cache afterwards
+		assertTrue(txHandler.isValidTx(tx2));
+		assertFalse(txHandler.isValidTx(tx3));
+		assertEquals(3, cache.getMisses());
+		assertEquals(1, txHandler.handleTxs(new Transaction[] { tx3, tx2 }).length);
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.size());
+	}
+
+	/**
+	 * testStreaming() is to test whether StreamingTxHandler reports each decision with its reason
+	 * as Txs are submitted, seals the epoch like handleTxs(), and accepts held orphans once their
+	 * parent arrives
+	 */
+	public void testStreaming()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx1, 0, BobKeypair, 10, CharlieKeypair);   // signed by the wrong key
+		Transaction tx4 = transfer(tx2, 0, BobKeypair, 10, DavidKeypair);
+		final List<String> events = new ArrayList<String>();
+		StreamingTxHandler.Listener listener = new StreamingTxHandler.Listener() {
+			public void onAccepted(Transaction tx) {
+				events.add("accepted");
+			}
+
+			public void onRejected(Transaction tx, TxHandler.Rejection reason) {
+				events.add(reason.name());
+			}
+		};
+
+		UTXOPool initialPool = txHandler.uPool;
+		Transaction[] possibleTxs = new Transaction[] { tx2, tx1, tx3, tx4 };
+		Transaction[] expected = new TxHandler(initialPool).handleTxs(possibleTxs);
+
+		StreamingTxHandler streaming = new StreamingTxHandler(new TxHandler(initialPool), listener);
+		streaming.submit(tx2);
+		assertEquals("NOT_IN_POOL", events.get(0));
+		streaming.submitAll(new Transaction[] { tx1, tx3, tx4 });
+		assertEquals(Arrays.asList("NOT_IN_POOL", "accepted", "INVALID_SIGNATURE", "NOT_IN_POOL"), events);
+		Transaction[] sealed = streaming.seal();
+		assertEquals(expected.length, sealed.length);
+		assertSame(expected[0], sealed[0]);
+
+		// with orphan holding, tx4 and tx2 wait for their parents and are accepted after tx1
+		events.clear();
+		streaming = new StreamingTxHandler(new TxHandler(initialPool), listener, 10);
+		streaming.submitAll(new Transaction[] { tx4, tx2, tx3, tx1 });
+		assertEquals(Arrays.asList("accepted", "accepted", "accepted"), events);
+		assertEquals(3, streaming.seal().length);
+	}
+
+	/**
+	 * testMempool() is to test whether the Mempool detects double spendings, holds orphans until
+	 * their parent arrives, and extracts candidates that handleTxs() accepts in one pass
+	 */
+	public void testMempool()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 9, BobKeypair);
+		Transaction tx3 = transfer(tx1, 0, AliceKeypair, 8, CharlieKeypair);   // double spending with tx2
+		Transaction tx4 = transfer(tx2, 0, BobKeypair, 9, DavidKeypair);
+
+		Mempool mempool = new Mempool(txHandler.uPool, 100, 10, 2);
+		assertEquals(Mempool.Status.ORPHAN, mempool.add(tx4));
+		assertEquals(Mempool.Status.ORPHAN, mempool.add(tx2));
+		assertEquals(2, mempool.orphanCount());
+
+		// tx1 completes tx2, which completes tx4
+		assertEquals(Mempool.Status.ADDED, mempool.add(tx1));
+		assertEquals(0, mempool.orphanCount());
+		assertEquals(3, mempool.size());
+		assertEquals(Mempool.Status.CONFLICT, mempool.add(tx3));
+		assertEquals(Mempool.Status.DUPLICATE, mempool.add(tx2));
+		assertTrue(mempool.isSpent(new UTXO(tx1.getHash(), 0)));
+
+		Transaction[] candidates = mempool.candidates(10);
+		assertEquals(3, candidates.length);
+		Transaction[] acceptedTxs = txHandler.handleTxs(candidates);
+		assertEquals(3, acceptedTxs.length);
+		mempool.epochAccepted(acceptedTxs);
+		assertEquals(0, mempool.size());
+
+		// a mempool of one transaction takes one, and refuses another paying no higher fee rate
+		Transaction tx5 = transfer(tx4, 0, DavidKeypair, 9, AliceKeypair);
+		mempool = new Mempool(txHandler.uPool, 1, 1, 1);
+		assertEquals(Mempool.Status.ADDED, mempool.add(tx5));
+		assertEquals(Mempool.Status.FULL, mempool.add(transfer(tx5, 0, AliceKeypair, 9, BobKeypair)));
+		for (int[] bounds : new int[][] { { 0, 10, 2 }, { 100, -1, 2 }, { 100, 10, 0 } }) {
+			try {
+				new Mempool(txHandler.uPool, bounds[0], bounds[1], bounds[2]);
+				fail("a mempool with a non-positive bound was created");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+
+	/**
+	 * testAmountOverflow() is to test whether outputs whose values add up beyond the range of
+	 * amounts are rejected instead of wrapping around to a sum below the inputs
+	 */
+	public void testAmountOverflow()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = new Transaction();
+		tx1.addInput(genesisTx.getHash(), 0);
+		tx1.addOutput(Long.MAX_VALUE, AliceKeypair.getPublic());
+		tx1.addOutput(Long.MAX_VALUE, BobKeypair.getPublic());
+		tx1.addOutput(2, CharlieKeypair.getPublic());   // the wrapped-around sum would be 0
+		tx1.addSignature(signMessage(ScroogeKeypair.getPrivate(), tx1.getRawDataToSign(0)), 0);
+		tx1.finalize();
+		assertEquals(TxHandler.Rejection.OUTPUTS_EXCEED_INPUTS, txHandler.checkTx(tx1));
+	}
 
+	/**
+	 * testSealedOutputs() is to test whether changing the outputs, inputs or hash handed out by a
+	 * sealed Tx leaves the Tx as it was checked, so that no inflated output reaches the pool
+	 */
+	public void testSealedOutputs()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		byte[] hash = tx1.getHash().clone();
+		tx1.seal();
+		tx1.getOutput(0).value = Long.MAX_VALUE;
+		tx1.getOutputs().get(0).value = Long.MAX_VALUE;
+		tx1.getInput(0).outputIndex = 1;
+		tx1.getHash()[0] ^= 1;
+		assertEquals(10, tx1.getOutput(0).value);
+		assertEquals(0, tx1.getInput(0).outputIndex);
+		assertTrue(Arrays.equals(hash, tx1.getHash()));
+
+		assertEquals(1, txHandler.handleTxs(new Transaction[] { tx1 }).length);
+		Transaction.Output pooled = txHandler.uPool.getTxOutput(new UTXO(hash, 0));
+		assertEquals(10, pooled.value);
+		// nor does changing the output found in the pool change the Tx
+		pooled.value = Long.MAX_VALUE;
+		assertEquals(10, tx1.getOutput(0).value);
+		assertEquals(10, tx1.getTotalOutputValue());
+	}
+
+	/**
+	 * testMetrics() is to test whether a handler reports the stages it goes through, the decision
+	 * on every Tx with the condition failed, and the pool after the epoch
+	 */
+	public void testMetrics()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, BobKeypair, 10, CharlieKeypair);       // signed by the wrong key
+		Transaction tx3 = transfer(genesisTx, 0, ScroogeKeypair, 10, BobKeypair);  // double spending with tx1
+		TxHandlerMetrics metrics = new TxHandlerMetrics();
+		txHandler.setListener(metrics);
+		assertEquals(1, txHandler.handleTxs(new Transaction[] { tx1, tx2, tx3 }).length);
+
+		assertEquals(1, metrics.getAccepted());
+		assertEquals(1, metrics.getRejected(TxHandler.Rejection.INVALID_SIGNATURE));
+		assertEquals(1, metrics.getRejected(TxHandler.Rejection.NOT_IN_POOL));
+		assertEquals(2, metrics.getRejected());
+		assertEquals(1, metrics.getEpochs());
+		assertEquals(1, metrics.getPoolSize());
+		assertEquals(3, metrics.getLatency(TxHandler.Stage.LOOKUP).getCount());
+		assertEquals(2, metrics.getLatency(TxHandler.Stage.SIGNATURE).getCount());
+		assertEquals(1, metrics.getLatency(TxHandler.Stage.APPLY).getCount());
+		LatencyHistogram epoch = metrics.getLatency(TxHandler.Stage.EPOCH);
+		assertEquals(1, epoch.getCount());
+		assertTrue(epoch.getValueAtPercentile(50) > 0);
+		assertEquals(epoch.getMax(), epoch.getValueAtPercentile(100));
+
+		// percentiles are within the precision of the buckets
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long v = 1; v <= 1000; v++) {
+			histogram.record(v * 1000);
+		}
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 990000 * 1.04);
+		assertEquals(1000000, histogram.getMax());
+
+		// without a listener nothing more is reported
+		txHandler.setListener(null);
+		txHandler.handleTxs(new Transaction[] { tx2 });
+		assertEquals(1, metrics.getEpochs());
+	}
+
+	/**
+	 * testUndoLog() is to test whether the undo logs of two epochs roll the pool back to its state
+	 * before them and forward again, and keep only the net changes
+	 */
+	public void testUndoLog()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx2, 0, BobKeypair, 10, CharlieKeypair);
+		UTXO genesis = new UTXO(genesisTx.getHash(), 0);
+		UTXO utxo1 = new UTXO(tx1.getHash(), 0);
+		UTXO utxo2 = new UTXO(tx2.getHash(), 0);
+		UTXO utxo3 = new UTXO(tx3.getHash(), 0);
+		txHandler.setUndoLogging(true);
+		txHandler.handleTxs(new Transaction[] { tx1 });
+		UndoLog epoch1 = txHandler.takeUndoLog();
+		txHandler.handleTxs(new Transaction[] { tx2, tx3 });
+		UndoLog epoch2 = txHandler.takeUndoLog();
+
+		// the output of tx2 was created and spent in the second epoch
+		assertEquals(2, epoch2.size());
+		assertEquals(Collections.singleton(utxo1), epoch2.getRemoved().keySet());
+		assertEquals(Collections.singleton(utxo3), epoch2.getAdded());
+
+		UTXOPool pool = txHandler.uPool;
+		epoch2.rollBack(pool);
+		epoch1.rollBack(pool);
+		assertEquals(1, pool.size());
+		assertSame(genesisTx.getOutput(0), pool.getTxOutput(genesis));
+		try {
+			epoch1.rollBack(pool);
+			fail("rolled back twice");
+		} catch (IllegalStateException e) {
+			assertEquals(1, pool.size());
+		}
+
+		epoch1.rollForward(pool);
+		epoch2.rollForward(pool);
+		assertEquals(1, pool.size());
+		assertTrue(pool.contains(utxo3));
+		assertFalse(pool.contains(utxo2));
+		assertEquals(0, txHandler.takeUndoLog().size());
+	}
+
+	/**
+	 * testBlockChain() is to test whether blocks are validated against the pool of their parent,
+	 * whether the longest chain is followed through a fork, and whether old blocks are pruned
+	 */
+	public void testBlockChain()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Block genesis = new Block(null, ScroogeKeypair.getPublic());
+		genesis.computeHash();
+		BlockChain chain = new BlockChain(genesis);
+
+		Block block1 = new Block(genesis.getHash(), AliceKeypair.getPublic());
+		Transaction toAlice = transfer(genesis.getCoinbase(), 0, ScroogeKeypair, Block.COINBASE, AliceKeypair);
+		block1.addTransaction(toAlice);
+		block1.computeHash();
+		assertTrue(chain.addBlock(block1));
+
+		// a fork spending the same coin on top of the genesis block; the older block stays the head
+		Block fork1 = new Block(genesis.getHash(), BobKeypair.getPublic());
+		Transaction toBob = transfer(genesis.getCoinbase(), 0, ScroogeKeypair, Block.COINBASE, BobKeypair);
+		fork1.addTransaction(toBob);
+		fork1.computeHash();
+		assertTrue(chain.addBlock(fork1));
+		assertSame(block1, chain.getMaxHeightBlock());
+
+		// a block spending a coin of the other branch is invalid
+		Block invalid = new Block(fork1.getHash(), BobKeypair.getPublic());
+		invalid.addTransaction(transfer(toAlice, 0, AliceKeypair, Block.COINBASE, BobKeypair));
+		invalid.computeHash();
+		assertFalse(chain.addBlock(invalid));
+
+		// the fork grows longer and becomes the longest chain
+		Block fork2 = new Block(fork1.getHash(), CharlieKeypair.getPublic());
+		fork2.addTransaction(transfer(toBob, 0, BobKeypair, Block.COINBASE, CharlieKeypair));
+		fork2.computeHash();
+		assertTrue(chain.addBlock(fork2));
+		assertSame(fork2, chain.getMaxHeightBlock());
+		UTXOPool pool = chain.getMaxHeightUTXOPool();
+		assertFalse(pool.contains(new UTXO(toAlice.getHash(), 0)));
+		assertFalse(pool.contains(new UTXO(toBob.getHash(), 0)));
+		assertEquals(3, pool.size());   // the coinbases of fork1 and fork2, and Charlie's coin
+
+		// old blocks and the branches forking off below the cut-off are pruned
+		Block last = fork2;
+		for (int i = 0; i < BlockChain.CUT_OFF_AGE + 5; i++) {
+			Block block = new Block(last.getHash(), DavidKeypair.getPublic());
+			block.computeHash();
+			assertTrue(chain.addBlock(block));
+			last = block;
+		}
+		assertEquals(3 + BlockChain.CUT_OFF_AGE + 5, chain.getMaxHeight());
+		assertEquals(BlockChain.CUT_OFF_AGE + 1, chain.size());
+		Block stale = new Block(block1.getHash(), AliceKeypair.getPublic());
+		stale.computeHash();
+		assertFalse(chain.addBlock(stale));
+		assertEquals(3 + BlockChain.CUT_OFF_AGE + 5, chain.getMaxHeightUTXOPool().size());
+	}
+
+	/**
+	 * testTxBuilder() is to test whether the builder selects exact matches without change, falls
+	 * back to the largest coins with change, never selects a reserved coin twice, and builds Txs
+	 * that are valid
+	 */
+	public void testTxBuilder() throws Exception {
+		Transaction coins = new Transaction();
+		for (long value : new long[] { 1, 2, 3, 5, 8 }) {
+			coins.addOutput(value, ScroogeKeypair.getPublic());
+		}
+		coins.finalize();
+		UTXOPool pool = new UTXOPool();
+		for (int j = 0; j < coins.numOutputs(); j++) {
+			pool.addUTXO(new UTXO(coins.getHash(), j), coins.getOutput(j));
+		}
+		TxHandler handler = new TxHandler(pool);
+		ForkJoinPool executor = new ForkJoinPool(2);
+		try {
+			TxBuilder builder = new TxBuilder(handler.uPool, executor);
+			Transaction tx1 = builder.pay(ScroogeKeypair, AliceKeypair.getPublic(), 9, 1);   // 8 + 2
+			assertTrue(tx1.isSealed());
+			assertEquals(2, tx1.numInputs());
+			assertEquals(1, tx1.numOutputs());
+			Transaction tx2 = builder.pay(ScroogeKeypair, BobKeypair.getPublic(), 4, 0);     // 3 + 1
+			assertEquals(2, tx2.numInputs());
+			Transaction tx3 = builder.pay(ScroogeKeypair, CharlieKeypair.getPublic(), 3, 0); // 5, with 2 of change
+			assertEquals(1, tx3.numInputs());
+			assertEquals(2, tx3.numOutputs());
+			assertEquals(2, tx3.getOutput(1).value);
+			assertNull(builder.pay(ScroogeKeypair, DavidKeypair.getPublic(), 1, 0));          // all reserved
+
+			builder.release(tx3);
+			builder.setStrategy(TxBuilder.Strategy.LARGEST_FIRST);
+			Transaction tx4 = builder.pay(ScroogeKeypair, DavidKeypair.getPublic(), 4, 1);
+			assertEquals(1, tx4.numInputs());
+			assertEquals(1, tx4.numOutputs());
+
+			Transaction[] acceptedTxs = handler.handleTxs(new Transaction[] { tx1, tx2, tx4 });
+			assertEquals(3, acceptedTxs.length);
+			assertEquals(0, handler.uPool.getBalance(ScroogeKeypair.getPublic()));
+			assertNull(builder.pay(ScroogeKeypair, DavidKeypair.getPublic(), 1, 0));
+			assertEquals(1, builder.pay(AliceKeypair, ScroogeKeypair.getPublic(), 9, 0).numInputs());
+
+			// a UTXO spent behind the builder's back, and replaced by one of the same value, so that
+			// the owner's number of UTXOs and balance stay the same
+			ConcurrentUTXOPool shared = new ConcurrentUTXOPool(4);
+			shared.addUTXO(new UTXO(coins.getHash(), 0), coins.getOutput(4));
+			builder = new TxBuilder(shared, null);
+			builder.release(builder.pay(ScroogeKeypair, BobKeypair.getPublic(), 8, 0));
+			shared.claim(new UTXO(coins.getHash(), 0));
+			shared.addUTXO(new UTXO(coins.getHash(), 1), coins.getOutput(4));
+			Transaction tx5 = builder.pay(ScroogeKeypair, BobKeypair.getPublic(), 8, 0);
+			assertNotNull(tx5);
+			assertEquals(1, tx5.getInput(0).outputIndex);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * testMerkleTree() is to test whether the inclusion proof of every accepted Tx checks against
+	 * the root of the epoch, whether a proof for another position fails, and whether the tree is
+	 * the same when hashed in parallel
+	 */
+	public void testMerkleTree()
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		Transaction tx1 = transfer(genesisTx, 0, ScroogeKeypair, 10, AliceKeypair);
+		Transaction tx2 = transfer(tx1, 0, AliceKeypair, 10, BobKeypair);
+		Transaction tx3 = transfer(tx2, 0, BobKeypair, 10, CharlieKeypair);
+		MerkleTree epoch = new MerkleTree(txHandler.handleTxs(new Transaction[] { tx1, tx2, tx3 }), null);
+		assertEquals(3, epoch.size());
+		byte[] root = epoch.getRoot();
+		Transaction[] accepted = { tx1, tx2, tx3 };
+		for (int i = 0; i < 3; i++) {
+			assertTrue(MerkleTree.verify(root, accepted[i].getHash(), i, 3, epoch.getProof(i)));
+			assertFalse(MerkleTree.verify(root, accepted[i].getHash(), (i + 1) % 3, 3, epoch.getProof(i)));
+		}
+		assertFalse(MerkleTree.verify(root, tx3.getHash(), 2, 4, epoch.getProof(2)));
+
+		Random random = new Random(1);
+		Transaction[] txs = new Transaction[3001];
+		for (int i = 0; i < txs.length; i++) {
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			txs[i] = new Transaction();
+			txs[i].setHash(hash);
+		}
+		MerkleTree sequential = new MerkleTree(txs, null);
+		ForkJoinPool executor = new ForkJoinPool(4);
+		try {
+			MerkleTree parallel = new MerkleTree(txs, executor);
+			assertTrue(Arrays.equals(sequential.getRoot(), parallel.getRoot()));
+		} finally {
+			executor.shutdown();
+		}
+		for (int i : new int[] { 0, 1, 1500, 2999, 3000 }) {
+			byte[][] proof = sequential.getProof(i);
+			assertTrue(proof.length <= 12);
+			assertTrue(MerkleTree.verify(sequential.getRoot(), txs[i].getHash(), i, txs.length, proof));
+		}
+		assertNull(new MerkleTree(new Transaction[0], null).getRoot());
+	}
 }
@@ -0,0 +1,508 @@
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class UTXOPoolTest extends TestCase {
+	private Transaction tx;   // a Tx whose outputs are used as the values of the pool
+	private Random random;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		tx = new Transaction();
+		for (int i = 0; i < 10; i++) {
+			tx.addOutput(i, null);
+		}
+		random = new Random(42);
+	}
+
+	//randomUTXO() is to create a UTXO of a random Tx hash and a small index
+	private UTXO randomUTXO() {
+		byte[] hash = new byte[32];
+		random.nextBytes(hash);
+		return new UTXO(hash, random.nextInt(4));
+	}
+
+	/**
+	 * testForkIsolation() is to test whether a copy or fork of a pool and the pool itself never
+	 * see each other's changes
+	 */
+	public void testForkIsolation() {
+		UTXOPool pool = new UTXOPool();
+		UTXO utxo1 = randomUTXO();
+		UTXO utxo2 = randomUTXO();
+		pool.addUTXO(utxo1, tx.getOutput(1));
+
+		UTXOPool copy = new UTXOPool(pool);
+		UTXOPool fork = pool.fork();
+		fork.removeUTXO(utxo1);
+		fork.addUTXO(utxo2, tx.getOutput(2));
+		pool.addUTXO(utxo1, tx.getOutput(3));
+
+		assertSame(tx.getOutput(3), pool.getTxOutput(utxo1));
+		assertFalse(pool.contains(utxo2));
+		assertSame(tx.getOutput(1), copy.getTxOutput(utxo1));
+		assertEquals(1, copy.size());
+		assertFalse(fork.contains(utxo1));
+		assertTrue(fork.contains(utxo2));
+	}
+
+	/**
+	 * testCommit() is to test whether the changes of a fork become the contents of the pool on
+	 * commit, and whether a fork of a pool changed in the meantime is refused
+	 */
+	public void testCommit() {
+		UTXOPool pool = new UTXOPool();
+		UTXO utxo1 = randomUTXO();
+		UTXO utxo2 = randomUTXO();
+		pool.addUTXO(utxo1, tx.getOutput(1));
+
+		UTXOPool fork = pool.fork();
+		fork.removeUTXO(utxo1);
+		fork.addUTXO(utxo2, tx.getOutput(2));
+		pool.commit(fork);
+		assertFalse(pool.contains(utxo1));
+		assertSame(tx.getOutput(2), pool.getTxOutput(utxo2));
+
+		// the committed fork stays independent of the pool
+		fork.addUTXO(utxo1, tx.getOutput(1));
+		assertFalse(pool.contains(utxo1));
+
+		UTXOPool staleFork = pool.fork();
+		pool.removeUTXO(utxo2);
+		try {
+			pool.commit(staleFork);
+			fail("a fork of a changed pool must not be committed");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			pool.commit(new UTXOPool());
+			fail("only forks of the pool can be committed");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * testAgainstHashMap() is to test whether the pool and its forks behave like HashMap copies
+	 * under many random additions and removals
+	 */
+	public void testAgainstHashMap() {
+		checkAgainstHashMap(new UTXOPool());
+	}
+
+	/**
+	 * testOffHeapAgainstHashMap() is to test whether the off-heap pool behaves like the heap pool,
+	 * growing from a small table and reusing the slots of removed UTXOs
+	 */
+	public void testOffHeapAgainstHashMap() {
+		checkAgainstHashMap(new OffHeapUTXOPool(16));
+	}
+
+	/**
+	 * testConcurrentClaim() is to test whether the sharded pool behaves like the heap pool, and
+	 * whether threads claiming overlapping sets of UTXOs never claim one UTXO twice
+	 */
+	public void testConcurrentClaim() throws Exception {
+		checkAgainstHashMap(new ConcurrentUTXOPool(4));
+
+		ConcurrentUTXOPool pool = new ConcurrentUTXOPool();
+		UTXO[] utxos = new UTXO[1000];
+		for (int i = 0; i < utxos.length; i++) {
+			utxos[i] = randomUTXO();
+			pool.addUTXO(utxos[i], tx.getOutput(1));
+		}
+		assertFalse(pool.claim(utxos[0], utxos[0]));
+		assertFalse(pool.claim(new UTXO[] { utxos[0] }, new Transaction.Output[] { tx.getOutput(2) }));
+		assertEquals(utxos.length, pool.size());
+
+		ConcurrentHashMap<UTXO, Integer> claimedBy = new ConcurrentHashMap<UTXO, Integer>();
+		AtomicInteger doubleClaims = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			int thread = t;
+			threads[t] = new Thread(() -> {
+				Random r = new Random(thread);
+				for (int k = 0; k < 2000; k++) {
+					UTXO[] claim = { utxos[r.nextInt(utxos.length)], utxos[r.nextInt(utxos.length)], utxos[r.nextInt(utxos.length)] };
+					if (pool.claim(claim)) {
+						for (UTXO utxo : claim) {
+							if (claimedBy.putIfAbsent(utxo, thread) != null) {
+								doubleClaims.incrementAndGet();
+							}
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, doubleClaims.get());
+		assertFalse(claimedBy.isEmpty());
+		assertEquals(utxos.length - claimedBy.size(), pool.size());
+		for (UTXO utxo : utxos) {
+			assertEquals(!claimedBy.containsKey(utxo), pool.contains(utxo));
+		}
+	}
+
+	/**
+	 * testOffHeapLookup() is to test whether the off-heap pool answers lookups by hash and index
+	 * with outputs equal to the added ones
+	 */
+	public void testOffHeapLookup() {
+		OffHeapUTXOPool pool = new OffHeapUTXOPool();
+		UTXO utxo = randomUTXO();
+		Transaction.Output output = new Transaction.Output(250, null);
+		pool.addUTXO(utxo, output);
+		assertTrue(pool.contains(utxo.getTxHash(), utxo.getIndex()));
+		assertFalse(pool.contains(utxo.getTxHash(), utxo.getIndex() + 1));
+		assertEquals(250, pool.getTxOutput(utxo.getTxHash(), utxo.getIndex()).value);
+
+		UTXOPool fork = pool.fork();
+		assertTrue(fork instanceof OffHeapUTXOPool);
+		fork.removeUTXO(utxo);
+		assertTrue(pool.contains(utxo));
+		pool.commit(fork);
+		assertFalse(pool.contains(utxo));
+		assertEquals(0, pool.size());
+	}
+
+	/**
+	 * testOffHeapCapacity() is to test whether the off-heap table grows past one segment, keeping
+	 * every UTXO through resizes and forks, and whether pools larger than its bound are refused
+	 */
+	public void testOffHeapCapacity() {
+		// the largest table has more bytes than one int-indexed buffer can hold
+		assertTrue((long) OffHeapUTXOPool.MAX_CAPACITY * OffHeapUTXOPool.RECORD_SIZE > Integer.MAX_VALUE);
+		try {
+			new OffHeapUTXOPool(OffHeapUTXOPool.MAX_SIZE + 1);
+			fail("an off-heap pool larger than its bound was created");
+		} catch (IllegalArgumentException e) {
+		}
+
+		OffHeapUTXOPool pool = new OffHeapUTXOPool(16);
+		UTXO[] utxos = new UTXO[OffHeapUTXOPool.SEGMENT_SLOTS + 1000];
+		for (int i = 0; i < utxos.length; i++) {
+			utxos[i] = randomUTXO();
+			pool.addUTXO(utxos[i], new Transaction.Output(i, null));
+		}
+		assertTrue(pool.offHeapBytes() > (long) OffHeapUTXOPool.SEGMENT_SLOTS * OffHeapUTXOPool.RECORD_SIZE);
+		for (int i = 0; i < utxos.length; i += 2) {
+			pool.removeUTXO(utxos[i]);
+		}
+		UTXOPool fork = pool.fork();
+		assertEquals(utxos.length / 2, fork.size());
+		assertEquals(pool.getCommitment(), fork.getCommitment());
+		for (int i = 0; i < utxos.length; i++) {
+			assertEquals(i % 2 == 1, fork.contains(utxos[i]));
+			if (i % 2 == 1) {
+				assertEquals(i, pool.getTxOutput(utxos[i]).value);
+			}
+		}
+		assertEquals(utxos.length / 2, pool.getAllUTXO().size());
+	}
+
+	//checkAgainstHashMap() is to apply the same random changes to pool and to a HashMap and compare them
+	private void checkAgainstHashMap(UTXOPool pool) {
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		UTXO[] utxos = new UTXO[5000];
+		for (int i = 0; i < utxos.length; i++) {
+			utxos[i] = randomUTXO();
+		}
+		UTXOPool snapshot = null;
+		HashMap<UTXO, Transaction.Output> expectedSnapshot = null;
+		for (int step = 0; step < 50000; step++) {
+			UTXO utxo = utxos[random.nextInt(utxos.length)];
+			if (random.nextBoolean()) {
+				Transaction.Output output = tx.getOutput(random.nextInt(10));
+				pool.addUTXO(utxo, output);
+				expected.put(utxo, output);
+			} else {
+				pool.removeUTXO(utxo);
+				expected.remove(utxo);
+			}
+			if (step == 20000) {
+				snapshot = pool.fork();
+				expectedSnapshot = new HashMap<UTXO, Transaction.Output>(expected);
+			}
+		}
+		assertEquals(expected.size(), pool.size());
+		assertEquals(expected.keySet(), new HashSet<UTXO>(pool.getAllUTXO()));
+		assertEquals(expectedSnapshot.size(), snapshot.size());
+		for (UTXO utxo : utxos) {
+			assertSameOutput(expected.get(utxo), pool.getTxOutput(utxo));
+			assertSameOutput(expectedSnapshot.get(utxo), snapshot.getTxOutput(utxo));
+		}
+	}
+
+	//assertSameOutput() is to check that two outputs have the same value and address (or are both null)
+	private void assertSameOutput(Transaction.Output expected, Transaction.Output actual) {
+		if (expected == null) {
+			assertNull(actual);
+		} else {
+			assertEquals(expected.value, actual.value);
+			assertSame(expected.address, actual.address);
+		}
+	}
+
+	/**
+	 * testHashCollisions() is to test whether the persistent map keeps keys with equal hash codes
+	 * apart ("Aa" and "BB" have the same String hash code)
+	 */
+	public void testHashCollisions() {
+		PersistentHashMap<String, Integer> map = new PersistentHashMap<String, Integer>();
+		map.put("Aa", 1);
+		map.put("BB", 2);
+		PersistentHashMap<String, Integer> fork = map.fork();
+		fork.put("AaAa", 3);
+		fork.put("BBBB", 4);
+		fork.remove("Aa");
+		assertEquals(Integer.valueOf(1), map.get("Aa"));
+		assertEquals(Integer.valueOf(2), map.get("BB"));
+		assertNull(map.get("AaAa"));
+		assertEquals(2, map.size());
+		assertNull(fork.get("Aa"));
+		assertEquals(Integer.valueOf(2), fork.get("BB"));
+		assertEquals(Integer.valueOf(3), fork.get("AaAa"));
+		assertEquals(Integer.valueOf(4), fork.get("BBBB"));
+		assertEquals(3, fork.size());
+	}
+
+	/**
+	 * testDurableReopen() is to test whether a DurableUTXOPool reopens to its last committed epoch,
+	 * ignoring changes that were not committed and a record torn by a crash
+	 */
+	public void testDurableReopen() throws IOException {
+		File dir = Files.createTempDirectory("utxo").toFile();
+		UTXO utxo1 = randomUTXO();
+		UTXO utxo2 = randomUTXO();
+		UTXO utxo3 = randomUTXO();
+
+		DurableUTXOPool store = DurableUTXOPool.open(dir);
+		store.addUTXO(utxo1, tx.getOutput(1));
+		assertEquals(1, store.commitEpoch());
+
+		// the changes of a fork are logged once committed to the store
+		UTXOPool fork = store.fork();
+		fork.removeUTXO(utxo1);
+		fork.addUTXO(utxo2, tx.getOutput(2));
+		store.commit(fork);
+		assertEquals(2, store.commitEpoch());
+		store.checkpoint();
+
+		// and so are those of a fork of a fork, committed to the fork first
+		fork = store.fork();
+		UTXOPool nested = fork.fork();
+		nested.addUTXO(utxo3, tx.getOutput(3));
+		fork.commit(nested);
+		store.commit(fork);
+		assertEquals(3, store.commitEpoch());
+		store.removeUTXO(utxo2);   // not committed
+		store.close();
+
+		store = DurableUTXOPool.open(dir);
+		assertEquals(3, store.getEpoch());
+		assertFalse(store.contains(utxo1));
+		assertEquals(2, store.getTxOutput(utxo2).value);
+		assertEquals(3, store.getTxOutput(utxo3).value);
+		assertEquals(2, store.size());
+
+		// the 4th epoch is torn: its record is only partially on disk
+		store.removeUTXO(utxo3);
+		assertEquals(4, store.commitEpoch());
+		store.close();
+		try (RandomAccessFile log = new RandomAccessFile(new File(dir, DurableUTXOPool.LOG), "rw")) {
+			long position = 0;
+			long last = 0;
+			for (int length = log.readInt(); length > 0; length = log.readInt()) {
+				last = position;
+				position += 8 + length;
+				log.seek(position);
+			}
+			log.seek(last + 12);
+			log.writeByte(log.readByte() ^ 1);
+		}
+		store = DurableUTXOPool.open(dir);
+		assertEquals(3, store.getEpoch());
+		assertTrue(store.contains(utxo3));
+
+		store.addUTXO(utxo1, tx.getOutput(1));
+		store.discardEpoch();
+		assertFalse(store.contains(utxo1));
+		assertEquals(4, store.commitEpoch());
+		store.close();
+		try (DurableUTXOPool reopened = DurableUTXOPool.open(dir)) {
+			assertEquals(4, reopened.getEpoch());
+		}
+	}
+
+	/**
+	 * testAddressRegistry() is to test whether equal public keys get one id and one shared instance,
+	 * whether only pools storing address ids register keys, and whether they, off-heap and on disk,
+	 * give that instance back
+	 */
+	public void testAddressRegistry() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
+		keyGen.initialize(1024, SecureRandom.getInstance("SHA1PRNG", "SUN"));
+		PublicKey key = keyGen.generateKeyPair().getPublic();
+		AddressRegistry registry = new AddressRegistry();
+		int id = registry.register(key);
+		assertEquals(id, registry.register(key.getEncoded()));
+		assertEquals(id, registry.idOf(Crypto.decodePublicKey(key.getEncoded())));
+		assertSame(key, registry.intern(Crypto.decodePublicKey(key.getEncoded())));
+		assertEquals(1, registry.size());
+		assertEquals(-1, registry.idOf(keyGen.generateKeyPair().getPublic()));
+
+		// a key only seen in transactions, even encoded, decoded and rejected, is not registered
+		Transaction payments = new Transaction();
+		payments.addOutput(5, key);
+		payments.addOutput(6, Crypto.decodePublicKey(key.getEncoded()));
+		payments.finalize();
+		Transaction decoded = TxCodec.decode(TxCodec.encode(payments));
+		assertEquals(key, decoded.getOutput(0).address);
+		assertFalse(new TxHandler(new UTXOPool()).isValidTx(decoded));
+		assertEquals(-1, AddressRegistry.global().idOf(key));
+
+		UTXO utxo1 = randomUTXO();
+		UTXO utxo2 = randomUTXO();
+		OffHeapUTXOPool offHeap = new OffHeapUTXOPool();
+		offHeap.addUTXO(utxo1, payments.getOutput(0));
+		offHeap.addUTXO(utxo2, tx.getOutput(2));
+		assertTrue(AddressRegistry.global().idOf(key) >= 0);
+		assertSame(payments.getOutput(0).address, offHeap.getTxOutput(utxo1).address);
+		assertNull(offHeap.getTxOutput(utxo2).address);
+
+		// once a pool holds the key, outputs and decoded transactions paying it share its instance
+		payments = new Transaction();
+		payments.addOutput(5, Crypto.decodePublicKey(key.getEncoded()));
+		payments.addOutput(6, Crypto.decodePublicKey(key.getEncoded()));
+		assertSame(key, payments.getOutput(0).address);
+		assertSame(key, payments.getOutput(1).address);
+		payments.finalize();
+		assertSame(key, TxCodec.decode(TxCodec.encode(payments)).getOutput(1).address);
+
+		File dir = Files.createTempDirectory("utxo").toFile();
+		try (DurableUTXOPool store = DurableUTXOPool.open(dir)) {
+			store.addUTXO(utxo1, payments.getOutput(0));
+			store.addUTXO(randomUTXO(), payments.getOutput(1));
+			store.addUTXO(utxo2, tx.getOutput(2));
+			store.commitEpoch();
+			store.checkpoint();
+		}
+		try (DurableUTXOPool store = DurableUTXOPool.open(dir)) {
+			assertEquals(3, store.size());
+			assertSame(payments.getOutput(0).address, store.getTxOutput(utxo1).address);
+			assertNull(store.getTxOutput(utxo2).address);
+		}
+	}
+
+	/**
+	 * testOwnerIndex() is to test whether the balance, count and UTXOs of each key follow random
+	 * additions, overwrites and removals in every backend, and whether forks keep their own index
+	 */
+	public void testOwnerIndex() throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
+		keyGen.initialize(1024, SecureRandom.getInstance("SHA1PRNG", "SUN"));
+		PublicKey[] keys = { keyGen.generateKeyPair().getPublic(), keyGen.generateKeyPair().getPublic(), null };
+		Transaction payments = new Transaction();
+		for (int i = 0; i < 9; i++) {
+			payments.addOutput(i + 1, keys[i % 3]);
+		}
+
+		for (UTXOPool pool : new UTXOPool[] { new UTXOPool(), new OffHeapUTXOPool(16), new ConcurrentUTXOPool(4) }) {
+			UTXO[] utxos = new UTXO[20];
+			for (int i = 0; i < utxos.length; i++) {
+				utxos[i] = randomUTXO();
+			}
+			UTXOPool fork = null;
+			for (int step = 0; step < 500; step++) {
+				UTXO utxo = utxos[random.nextInt(utxos.length)];
+				if (random.nextBoolean()) {
+					pool.addUTXO(utxo, payments.getOutput(random.nextInt(9)));
+				} else {
+					pool.removeUTXO(utxo);
+				}
+				if (step == 250) {
+					fork = pool.fork();
+				}
+			}
+			for (UTXOPool p : new UTXOPool[] { pool, fork }) {
+				for (int k = 0; k < 2; k++) {
+					PublicKey key = keys[k];
+					long balance = 0;
+					HashSet<UTXO> owned = new HashSet<UTXO>();
+					for (UTXO utxo : p.getAllUTXO()) {
+						if (key.equals(p.getTxOutput(utxo).address)) {
+							balance += p.getTxOutput(utxo).value;
+							owned.add(utxo);
+						}
+					}
+					assertEquals(balance, p.getBalance(key));
+					assertEquals(owned.size(), p.getOwnedCount(key));
+					assertEquals(owned, new HashSet<UTXO>(p.getOwnedUTXO(key)));
+					p.forEachOwned(key, (utxo, output) -> assertSame(key, output.address));
+				}
+			}
+		}
+	}
+
+	/**
+	 * testCommitment() is to test whether pools of every backend holding the same UTXOs, reached by
+	 * different changes, have the same commitment, and pools holding different ones do not
+	 */
+	public void testCommitment() {
+		UTXOPool[] pools = { new UTXOPool(), new OffHeapUTXOPool(16), new ConcurrentUTXOPool(4) };
+		UTXO[] utxos = new UTXO[30];
+		for (int i = 0; i < utxos.length; i++) {
+			utxos[i] = randomUTXO();
+		}
+		for (int step = 0; step < 300; step++) {
+			UTXO utxo = utxos[random.nextInt(utxos.length)];
+			Transaction.Output output = tx.getOutput(random.nextInt(10));
+			for (UTXOPool pool : pools) {
+				if (step % 3 == 0) {
+					pool.removeUTXO(utxo);
+				} else {
+					pool.addUTXO(utxo, output);
+				}
+			}
+		}
+		// a pool built in one go from the final contents
+		UTXOPool rebuilt = new UTXOPool();
+		for (UTXO utxo : pools[0].getAllUTXO()) {
+			rebuilt.addUTXO(utxo, pools[0].getTxOutput(utxo));
+		}
+		SetCommitment commitment = pools[0].getCommitment();
+		for (UTXOPool pool : pools) {
+			assertEquals(commitment, pool.getCommitment());
+		}
+		assertEquals(commitment, rebuilt.getCommitment());
+		assertEquals(commitment, pools[1].fork().getCommitment());
+		assertFalse(commitment.equals(new SetCommitment()));
+
+		UTXO utxo = pools[0].getAllUTXO().get(0);
+		Transaction.Output output = pools[0].getTxOutput(utxo);
+		for (UTXOPool pool : pools) {
+			pool.addUTXO(utxo, tx.getOutput((int) (output.value + 1) % 10));
+			assertFalse(commitment.equals(pool.getCommitment()));
+			pool.addUTXO(utxo, output);
+			assertEquals(commitment, pool.getCommitment());
+			pool.removeUTXO(utxo);
+			assertFalse(commitment.equals(pool.getCommitment()));
+		}
+	}
+}